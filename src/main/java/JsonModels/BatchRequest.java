@@ -0,0 +1,39 @@
+/*******************************************************************************
+ * Copyright (c) 2017 - IT Center for Clinical Research, University of Luebeck
+ * Noemi Deppenwiese, Hannes Ulrich
+ ******************************************************************************/
+package JsonModels;
+
+import java.util.List;
+
+public class BatchRequest {
+
+	public String serverbase;
+
+	/**
+	 * Ids of the Questionnaires to convert, or null if search is given
+	 */
+	public List<String> questionnaireids;
+
+	/**
+	 * Questionnaire search parameters, e.g. "status=active&publisher=ACME"
+	 */
+	public String search;
+
+	public boolean generateTags;
+
+	/**
+	 * If true, all tables are merged into one EMX file, otherwise one file is written per Questionnaire
+	 */
+	public boolean combined;
+
+	/**
+	 * Number of Questionnaires converted at the same time, 0 for the server default
+	 */
+	public int workers;
+
+	public BatchRequest() {
+		super();
+	}
+
+}
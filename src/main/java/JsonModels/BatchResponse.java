@@ -0,0 +1,28 @@
+/*******************************************************************************
+ * Copyright (c) 2017 - IT Center for Clinical Research, University of Luebeck
+ * Noemi Deppenwiese, Hannes Ulrich
+ ******************************************************************************/
+package JsonModels;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import converter.Issue;
+
+public class BatchResponse {
+
+	public List<Issue> issues;
+
+	/**
+	 * Id of the combined EMX file, null unless a combined batch was requested
+	 */
+	public String emx;
+
+	public List<BatchResult> results;
+
+	public BatchResponse() {
+		this.issues = new ArrayList<Issue>();
+		this.results = new ArrayList<BatchResult>();
+	}
+
+}
@@ -0,0 +1,30 @@
+/*******************************************************************************
+ * Copyright (c) 2017 - IT Center for Clinical Research, University of Luebeck
+ * Noemi Deppenwiese, Hannes Ulrich
+ ******************************************************************************/
+package JsonModels;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import converter.Issue;
+
+public class BatchResult {
+
+	public String questionnaireid;
+
+	public boolean converted;
+
+	/**
+	 * Id of the EMX file of this Questionnaire, null for combined batches or failed conversions
+	 */
+	public String emx;
+
+	public List<Issue> issues;
+
+	public BatchResult(String questionnaireid) {
+		this.questionnaireid = questionnaireid;
+		this.issues = new ArrayList<Issue>();
+	}
+
+}
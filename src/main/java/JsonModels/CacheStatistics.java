@@ -0,0 +1,21 @@
+/*******************************************************************************
+ * Copyright (c) 2017 - IT Center for Clinical Research, University of Luebeck
+ * Noemi Deppenwiese, Hannes Ulrich
+ ******************************************************************************/
+package JsonModels;
+
+public class CacheStatistics {
+
+	public int size;
+
+	public int maxEntries;
+
+	public long hits;
+
+	public long misses;
+
+	public long evictions;
+
+	public double hitRate;
+
+}
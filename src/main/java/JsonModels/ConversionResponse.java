@@ -0,0 +1,25 @@
+/*******************************************************************************
+ * Copyright (c) 2017 - IT Center for Clinical Research, University of Luebeck
+ * Noemi Deppenwiese, Hannes Ulrich
+ ******************************************************************************/
+package JsonModels;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import converter.Issue;
+
+public class ConversionResponse {
+
+	public List<Issue> issues;
+
+	/**
+	 * Id of the generated EMX file, null if the conversion failed
+	 */
+	public String emx;
+
+	public ConversionResponse() {
+		this.issues = new ArrayList<Issue>();
+	}
+
+}
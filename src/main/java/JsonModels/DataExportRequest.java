@@ -0,0 +1,27 @@
+/*******************************************************************************
+ * Copyright (c) 2017 - IT Center for Clinical Research, University of Luebeck
+ * Noemi Deppenwiese, Hannes Ulrich
+ ******************************************************************************/
+package JsonModels;
+
+import java.util.List;
+
+public class DataExportRequest {
+
+	public String serverbase;
+
+	public String questionnaireid;
+
+	public boolean generateTags;
+
+	/**
+	 * URLs of NDJSON files (e.g. the output of a bulk data $export) to read the QuestionnaireResponses from,
+	 * if null they are searched on the server
+	 */
+	public List<String> ndjson;
+
+	public DataExportRequest() {
+		super();
+	}
+
+}
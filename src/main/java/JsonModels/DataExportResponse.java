@@ -0,0 +1,30 @@
+/*******************************************************************************
+ * Copyright (c) 2017 - IT Center for Clinical Research, University of Luebeck
+ * Noemi Deppenwiese, Hannes Ulrich
+ ******************************************************************************/
+package JsonModels;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import converter.Issue;
+
+public class DataExportResponse {
+
+	public List<Issue> issues;
+
+	/**
+	 * Id of the generated EMX file with the data rows, null if the export failed
+	 */
+	public String emx;
+
+	/**
+	 * Number of QuestionnaireResponses written as rows
+	 */
+	public long rows;
+
+	public DataExportResponse() {
+		this.issues = new ArrayList<Issue>();
+	}
+
+}
@@ -0,0 +1,19 @@
+/*******************************************************************************
+ * Copyright (c) 2017 - IT Center for Clinical Research, University of Luebeck
+ * Noemi Deppenwiese, Hannes Ulrich
+ ******************************************************************************/
+package JsonModels;
+
+public class PoolStatistics {
+
+	public int leased;
+
+	public int pending;
+
+	public int available;
+
+	public int max;
+
+	public int clients;
+
+}
@@ -0,0 +1,29 @@
+/*******************************************************************************
+ * Copyright (c) 2017 - IT Center for Clinical Research, University of Luebeck
+ * Noemi Deppenwiese, Hannes Ulrich
+ ******************************************************************************/
+package JsonModels;
+
+import java.util.Map;
+
+public class ServerStatistics {
+
+	public String circuit;
+
+	public int consecutiveFailures;
+
+	public long calls;
+
+	public long failures;
+
+	public long rejected;
+
+	public int connectTimeoutMillis;
+
+	public int readTimeoutMillis;
+
+	public double meanMillis;
+
+	public Map<String, Long> latency;
+
+}
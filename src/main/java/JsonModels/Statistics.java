@@ -0,0 +1,33 @@
+/*******************************************************************************
+ * Copyright (c) 2017 - IT Center for Clinical Research, University of Luebeck
+ * Noemi Deppenwiese, Hannes Ulrich
+ ******************************************************************************/
+package JsonModels;
+
+import java.util.Map;
+
+public class Statistics {
+
+	public PoolStatistics connectionPool;
+
+	public Map<String, ServerStatistics> servers;
+
+	public CacheStatistics terminologyCache;
+
+	public CacheStatistics definitionCache;
+
+	public CacheStatistics unresolvableCache;
+
+	public CacheStatistics questionnaireCache;
+
+	public CacheStatistics snapshotCache;
+
+	public CacheStatistics resultCache;
+
+	public int terminologyStoreEntries;
+
+	public int localResources;
+
+	public long coalescedFetches;
+
+}
@@ -0,0 +1,176 @@
+/*******************************************************************************
+ * Copyright (c) 2017 - IT Center for Clinical Research, University of Luebeck
+ * Noemi Deppenwiese, Hannes Ulrich
+ ******************************************************************************/
+package converter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.hl7.fhir.dstu3.model.codesystems.IssueSeverity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+import server.FHIRResourceFetcher;
+
+/**
+ * Converts many Questionnaires of one server in parallel. Each worker fetches and converts one Questionnaire
+ * at a time, all of them share the process wide caches, so ValueSets and definitions used by several
+ * Questionnaires are only fetched once.
+ */
+public class BatchConverter {
+
+	final static Logger logger = LoggerFactory.getLogger(BatchConverter.class);
+
+	private static int defaultWorkers = Runtime.getRuntime().availableProcessors();
+
+	private FhirContext context;
+
+	private String baseURL;
+
+	private boolean withTags;
+
+	private int workers;
+
+	private List<Result> results;
+
+	/**
+	 * @param context
+	 * @param baseURL Server the Questionnaires are fetched from
+	 * @param withTags
+	 * @param workers Number of Questionnaires converted at the same time, values < 1 use the default
+	 */
+	public BatchConverter(FhirContext context, String baseURL, boolean withTags, int workers) {
+		this.context = context;
+		this.baseURL = baseURL;
+		this.withTags = withTags;
+		this.workers = workers < 1 ? defaultWorkers : Math.min(workers, defaultWorkers);
+		this.results = new ArrayList<Result>();
+	}
+
+	/**
+	 * Fetches and converts the given Questionnaires. Duplicate ids are converted once.
+	 * @param questionnaireIDs
+	 * @return one result per distinct id, in the given order
+	 */
+	public List<Result> convert(List<String> questionnaireIDs) {
+		List<String> ids = new ArrayList<String>(new LinkedHashSet<String>(questionnaireIDs));
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(this.workers, ids.size())));
+		try {
+			List<Future<Result>> pending = new ArrayList<Future<Result>>();
+			for (String id : ids) {
+				pending.add(executor.submit(() -> this.convertOne(id)));
+			}
+			for (int i = 0; i < ids.size(); i++) {
+				try {
+					this.results.add(pending.get(i).get());
+				} catch (ExecutionException e) {
+					logger.error("Conversion of Questionnaire " + ids.get(i) + " failed", e.getCause());
+					ConversionOutcome failed = new ConversionOutcome();
+					failed.addError(IssueSeverity.FATAL, "Questionnaire", "Conversion failed: " + e.getCause());
+					this.results.add(new Result(ids.get(i), failed));
+				}
+			}
+		} catch (InterruptedException e) {
+			logger.debug("Batch conversion was interrupted", e);
+			Thread.currentThread().interrupt();
+		} finally {
+			executor.shutdownNow();
+		}
+		return this.results;
+	}
+
+	private Result convertOne(String questionnaireID) {
+		FHIRResourceFetcher fetcher = new FHIRResourceFetcher(this.context, this.baseURL);
+		Questionnaire ques = fetcher.fetchQuestionnaire(questionnaireID);
+		if (ques == null) {
+			return new Result(questionnaireID, null);
+		}
+		QuestionnaireConverter converter = new QuestionnaireConverter(ques, fetcher, null);
+		converter.convert();
+		return new Result(questionnaireID, converter.getOutcome(this.withTags));
+	}
+
+	/**
+	 * Merges the tables of all successful conversions. Rows of tables with the same name are appended below
+	 * the header of the first one, rows that are already present (e.g. shared tags) are left out.
+	 * @return combined EMX tables, empty if nothing was converted
+	 */
+	public Map<String, String> getCombinedTables() {
+		HashMap<String, LinkedHashSet<String>> rows = new HashMap<String, LinkedHashSet<String>>();
+		for (Result result : this.results) {
+			if (!result.isConverted()) {
+				continue;
+			}
+			for (Map.Entry<String, String> table : result.getOutcome().getEmxTables().entrySet()) {
+				LinkedHashSet<String> combined = rows.computeIfAbsent(table.getKey(), name -> new LinkedHashSet<String>());
+				for (String row : table.getValue().split("\\r?\\n")) {
+					combined.add(row);
+				}
+			}
+		}
+		HashMap<String, String> tables = new HashMap<String, String>();
+		for (Map.Entry<String, LinkedHashSet<String>> table : rows.entrySet()) {
+			tables.put(table.getKey(), String.join("\n", table.getValue()));
+		}
+		return tables;
+	}
+
+	public static int getDefaultWorkers() {
+		return defaultWorkers;
+	}
+
+	/**
+	 * @param workers Maximum number of Questionnaires converted at the same time per batch
+	 */
+	public static void setDefaultWorkers(int workers) {
+		defaultWorkers = Math.max(1, workers);
+	}
+
+	/**
+	 * Outcome of one Questionnaire of the batch
+	 */
+	public static class Result {
+
+		private final String questionnaireID;
+
+		private final ConversionOutcome outcome;
+
+		Result(String questionnaireID, ConversionOutcome outcome) {
+			this.questionnaireID = questionnaireID;
+			this.outcome = outcome;
+		}
+
+		public String getQuestionnaireID() {
+			return this.questionnaireID;
+		}
+
+		/**
+		 * @return the outcome, null if the Questionnaire could not be fetched
+		 */
+		public ConversionOutcome getOutcome() {
+			return this.outcome;
+		}
+
+		public boolean isFound() {
+			return this.outcome != null;
+		}
+
+		/**
+		 * @return true if EMX tables were generated without errors
+		 */
+		public boolean isConverted() {
+			return this.outcome != null && !this.outcome.hasErrors() && this.outcome.getEmxTables() != null;
+		}
+	}
+
+}
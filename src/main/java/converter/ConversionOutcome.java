@@ -4,17 +4,33 @@
  ******************************************************************************/
 package converter;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.HashMap;
 
 import org.hl7.fhir.dstu3.model.codesystems.IssueSeverity;
 
+import emxModel.EMXTableWriter;
+
 public class ConversionOutcome {
 	
 	private HashMap<String, String> emxTables;
 	
 	private ArrayList<Issue> issues;
 	
+	/**
+	 * Zip file of the tables, once they were written
+	 */
+	private File archiveFile;
+	
+	/**
+	 * Writes the tables of the model straight into the zip file if they were not generated
+	 */
+	private EMXTableWriter tableWriter;
+	
 	ConversionOutcome(){
 		this.issues = new ArrayList<Issue>();
 	}
@@ -53,6 +69,52 @@ public class ConversionOutcome {
 		this.emxTables = emxTables;
 	}
 
+	/**
+	 * @return the zip file of the tables, null if they were not written yet
+	 */
+	public File getArchiveFile() {
+		return archiveFile;
+	}
+
+	/**
+	 * The tables are read from the file from now on, the model the outcome was created from is released
+	 * @param archiveFile the zip file of the tables
+	 */
+	public void setArchiveFile(File archiveFile) {
+		this.archiveFile = archiveFile;
+		this.tableWriter = null;
+	}
+
+	void setTableWriter(EMXTableWriter tableWriter) {
+		this.tableWriter = tableWriter;
+	}
+
+	/**
+	 * @return true if there are tables to write, either generated or from the model
+	 */
+	public boolean hasTables() {
+		return this.archiveFile != null || this.emxTables != null || this.tableWriter != null;
+	}
+
+	/**
+	 * Writes the zipped tables. Copies the zip file if the tables were written before, otherwise the generated tables
+	 * or, if they were not generated, the model the outcome was created from, see
+	 * {@link QuestionnaireConverter#getStreamingOutcome(boolean)}.
+	 * @param out not closed
+	 * @throws IOException
+	 */
+	public void writeArchive(OutputStream out) throws IOException {
+		if (this.archiveFile != null) {
+			Files.copy(this.archiveFile.toPath(), out);
+		} else if (this.emxTables != null) {
+			EMXTableWriter.writeZip(this.emxTables, out);
+		} else if (this.tableWriter != null) {
+			this.tableWriter.writeZip(out);
+		} else {
+			throw new IllegalStateException("The outcome contains no tables");
+		}
+	}
+
 	public boolean hasErrors(){
 		for(Issue issue:this.getIssues()){
 			if(issue.getSeverity().equals(IssueSeverity.FATAL) || issue.getSeverity().equals(IssueSeverity.ERROR)){
@@ -0,0 +1,83 @@
+/*******************************************************************************
+ * Copyright (c) 2017 - IT Center for Clinical Research, University of Luebeck
+ * Noemi Deppenwiese, Hannes Ulrich
+ ******************************************************************************/
+package converter;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import emxModel.EMX;
+import emxModel.Entity;
+
+/**
+ * Model and per item state of a finished conversion, used to convert a later version of the same Questionnaire
+ * incrementally (see {@link QuestionnaireConverter#convert(ConversionSnapshot)}). A snapshot can only be used
+ * for one conversion, because that conversion continues on its model.
+ */
+public class ConversionSnapshot {
+
+	private EMX emx;
+
+	private Entity mainEntity;
+
+	private boolean nameChecked;
+
+	private List<Issue> issues;
+
+	private LinkedHashMap<String, ItemState> items;
+
+	private Map<String, String> dependencyVersions;
+
+	/**
+	 * @param emx
+	 * @param mainEntity
+	 * @param nameChecked If names were checked against a MOLGENIS server
+	 * @param issues Issues not related to a single item
+	 * @param items States of all converted items by linkId, in item order
+	 * @param dependencyVersions Versions of the dependencies the items were converted with, see
+	 * {@link DependencyPrefetcher#getVersions()}. May be null if they are not known
+	 */
+	ConversionSnapshot(EMX emx, Entity mainEntity, boolean nameChecked, List<Issue> issues,
+			LinkedHashMap<String, ItemState> items, Map<String, String> dependencyVersions) {
+		this.emx = emx;
+		this.mainEntity = mainEntity;
+		this.nameChecked = nameChecked;
+		this.issues = issues;
+		this.items = items;
+		this.dependencyVersions = dependencyVersions;
+	}
+
+	EMX getEmx() {
+		return emx;
+	}
+
+	Entity getMainEntity() {
+		return mainEntity;
+	}
+
+	boolean isNameChecked() {
+		return nameChecked;
+	}
+
+	List<Issue> getIssues() {
+		return issues;
+	}
+
+	LinkedHashMap<String, ItemState> getItems() {
+		return items;
+	}
+
+	Map<String, String> getDependencyVersions() {
+		return dependencyVersions;
+	}
+
+	/**
+	 * @return number of converted items
+	 */
+	public int size() {
+		return this.items.size();
+	}
+
+}
@@ -0,0 +1,303 @@
+/*******************************************************************************
+ * Copyright (c) 2017 - IT Center for Clinical Research, University of Luebeck
+ * Noemi Deppenwiese, Hannes Ulrich
+ ******************************************************************************/
+package converter;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import org.hl7.fhir.dstu3.model.Coding;
+import org.hl7.fhir.dstu3.model.ElementDefinition;
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.hl7.fhir.dstu3.model.Questionnaire.QuestionnaireItemComponent;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.hl7.fhir.dstu3.model.ValueSet;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import server.FHIRResourceFetcher;
+
+/**
+ * Collects all item.definition URIs and item.options references of a Questionnaire, deduplicates them and
+ * resolves them concurrently with the asynchronous fetcher methods before the conversion starts. Definitions
+ * are resolved first because their bindings may add further ValueSet references. In batch mode the reads are
+ * first grouped into FHIR batch Bundles.
+ */
+public class DependencyPrefetcher {
+
+	final static Logger logger = LoggerFactory.getLogger(DependencyPrefetcher.class);
+
+	public final static int DEFAULT_PARALLELISM = 8;
+
+	private static int defaultParallelism = DEFAULT_PARALLELISM;
+
+	private static boolean batchMode = false;
+
+	private static int batchSize = FHIRResourceFetcher.DEFAULT_BATCH_SIZE;
+
+	private FHIRResourceFetcher fetcher;
+
+	private Questionnaire questionnaire;
+	
+	private List<QuestionnaireItemComponent> items;
+	
+	private boolean withSubitems;
+
+	private int parallelism;
+
+	private HashMap<String, ElementDefinition> definitions;
+
+	private HashMap<String, ValueSet> valueSets;
+
+	/**
+	 * True once every dependency was resolved, see {@link #getVersions()}
+	 */
+	private boolean complete;
+
+	/**
+	 * @param fetcher Used to resolve the dependencies
+	 * @param questionnaire
+	 * @param parallelism Maximum number of concurrent requests. Values < 1 disable prefetching
+	 */
+	public DependencyPrefetcher(FHIRResourceFetcher fetcher, Questionnaire questionnaire, int parallelism) {
+		this(fetcher, questionnaire, questionnaire.getItem(), true, parallelism);
+	}
+
+	/**
+	 * Only resolves the dependencies of the given items, not those of their subitems
+	 * @param fetcher Used to resolve the dependencies
+	 * @param questionnaire
+	 * @param items Items of the questionnaire
+	 * @param parallelism Maximum number of concurrent requests. Values < 1 disable prefetching
+	 */
+	public DependencyPrefetcher(FHIRResourceFetcher fetcher, Questionnaire questionnaire, List<QuestionnaireItemComponent> items,
+			int parallelism) {
+		this(fetcher, questionnaire, items, false, parallelism);
+	}
+
+	private DependencyPrefetcher(FHIRResourceFetcher fetcher, Questionnaire questionnaire, List<QuestionnaireItemComponent> items,
+			boolean withSubitems, int parallelism) {
+		this.fetcher = fetcher;
+		this.questionnaire = questionnaire;
+		this.items = items;
+		this.withSubitems = withSubitems;
+		this.parallelism = parallelism;
+		this.definitions = new HashMap<String, ElementDefinition>();
+		this.valueSets = new HashMap<String, ValueSet>();
+	}
+
+	/**
+	 * Resolves all dependencies. Those that fail are left out and will be resolved again on demand.
+	 */
+	public void prefetch() {
+		boolean failed = false;
+		Set<String> definitionURIs = new LinkedHashSet<String>();
+		Set<String> optionReferences = new LinkedHashSet<String>();
+		// Items without options may get them from the binding of their definition
+		Set<String> bindingCandidates = new LinkedHashSet<String>();
+		collect(this.items, this.withSubitems, definitionURIs, optionReferences, bindingCandidates);
+		if (definitionURIs.isEmpty() && optionReferences.isEmpty() && bindingCandidates.isEmpty()) {
+			this.complete = true;
+			return;
+		}
+		if (this.parallelism < 1 || this.fetcher == null) {
+			return;
+		}
+		logger.debug("Prefetching " + definitionURIs.size() + " definitions and at least " + optionReferences.size()
+				+ " ValueSets with " + this.parallelism + " parallel requests");
+
+		// Limits the requests of this conversion, the fetcher executor is shared with all others
+		Semaphore permits = new Semaphore(this.parallelism);
+		try {
+			// In batch mode most resolutions below are answered from the batch results without a request
+			if (batchMode) {
+				this.fetcher.readBatch(Collections.<String>emptyList(), definitionURIs, batchSize);
+			}
+			Map<String, Future<ElementDefinition>> pendingDefinitions = new LinkedHashMap<String, Future<ElementDefinition>>();
+			for (String uri : definitionURIs) {
+				permits.acquire();
+				pendingDefinitions.put(uri, this.fetcher.resolveElementDefinitionURIAsync(uri)
+						.whenComplete((result, error) -> permits.release()));
+			}
+			for (Map.Entry<String, Future<ElementDefinition>> pending : pendingDefinitions.entrySet()) {
+				try {
+					this.definitions.put(pending.getKey(), pending.getValue().get());
+				} catch (ExecutionException e) {
+					logger.debug("Prefetching definition " + pending.getKey() + " failed", e.getCause());
+					failed = true;
+				}
+			}
+
+			for (String uri : bindingCandidates) {
+				Reference binding = getBindingReference(this.definitions.get(uri));
+				if (binding != null && binding.getReference() != null) {
+					optionReferences.add(binding.getReference());
+				}
+			}
+
+			if (batchMode) {
+				this.fetcher.readBatch(optionReferences, Collections.<String>emptyList(), batchSize);
+			}
+			Map<String, Future<ValueSet>> pendingValueSets = new LinkedHashMap<String, Future<ValueSet>>();
+			for (String reference : optionReferences) {
+				permits.acquire();
+				pendingValueSets.put(reference, this.fetcher.resolveValueSetReferenceAsync(this.questionnaire, new Reference(reference))
+						.whenComplete((result, error) -> permits.release()));
+			}
+			for (Map.Entry<String, Future<ValueSet>> pending : pendingValueSets.entrySet()) {
+				try {
+					this.valueSets.put(pending.getKey(), pending.getValue().get());
+				} catch (ExecutionException e) {
+					logger.debug("Prefetching ValueSet " + pending.getKey() + " failed", e.getCause());
+					failed = true;
+				}
+			}
+			this.complete = !failed;
+		} catch (InterruptedException e) {
+			logger.debug("Prefetching was interrupted", e);
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void collect(List<QuestionnaireItemComponent> items, boolean withSubitems, Set<String> definitionURIs,
+			Set<String> optionReferences, Set<String> bindingCandidates) {
+		for (QuestionnaireItemComponent item : items) {
+			boolean hasDefinition = item.getDefinition() != null && !item.getDefinition().isEmpty();
+			if (hasDefinition) {
+				definitionURIs.add(item.getDefinition());
+			}
+			if (item.hasOptions()) {
+				if (item.getOptions().getReference() != null) {
+					optionReferences.add(item.getOptions().getReference());
+				}
+			} else if (hasDefinition) {
+				bindingCandidates.add(item.getDefinition());
+			}
+			if (withSubitems) {
+				collect(item.getItem(), true, definitionURIs, optionReferences, bindingCandidates);
+			}
+		}
+	}
+
+	/**
+	 * @param elemDef may be null
+	 * @return Reference to the ValueSet the given Element Definition is bound to, or null
+	 */
+	static Reference getBindingReference(ElementDefinition elemDef) {
+		if (elemDef == null || !elemDef.hasBinding()) {
+			return null;
+		}
+		try {
+			if (elemDef.getBinding().hasValueSetReference()) {
+				return elemDef.getBinding().getValueSetReference();
+			}
+			if (elemDef.getBinding().hasValueSetUriType()) {
+				return new Reference(elemDef.getBinding().getValueSetUriType().asStringValue());
+			}
+		} catch (FHIRException e) {
+			logger.debug("Failed to read binding of " + elemDef.getPath(), e);
+		}
+		return null;
+	}
+
+	/**
+	 * @param uri
+	 * @return true if the definition was resolved, its result may still be null
+	 */
+	public boolean hasDefinition(String uri) {
+		return this.definitions.containsKey(uri);
+	}
+
+	public ElementDefinition getDefinition(String uri) {
+		return this.definitions.get(uri);
+	}
+
+	/**
+	 * @param reference
+	 * @return true if the reference was resolved, its result may still be null
+	 */
+	public boolean hasValueSet(Reference reference) {
+		return reference.getReference() != null && this.valueSets.containsKey(reference.getReference());
+	}
+
+	public ValueSet getValueSet(Reference reference) {
+		return this.valueSets.get(reference.getReference());
+	}
+
+	/**
+	 * Versions of all resolved dependencies, for ValueSets made up of version, versionId and expansion
+	 * identifier, for definitions of the elements the conversion uses. Unresolvable dependencies have an
+	 * empty version.
+	 * @return Version by definition URI or ValueSet reference, sorted, or null if not all dependencies were
+	 * prefetched
+	 */
+	public Map<String, String> getVersions() {
+		if (!this.complete) {
+			return null;
+		}
+		Map<String, String> versions = new TreeMap<String, String>();
+		for (Map.Entry<String, ElementDefinition> definition : this.definitions.entrySet()) {
+			versions.put(definition.getKey(), getVersion(definition.getValue()));
+		}
+		for (Map.Entry<String, ValueSet> valueSet : this.valueSets.entrySet()) {
+			versions.put(valueSet.getKey(), getVersion(valueSet.getValue()));
+		}
+		return versions;
+	}
+
+	private static String getVersion(ValueSet valueSet) {
+		if (valueSet == null) {
+			return "";
+		}
+		return valueSet.getUrl() + "|" + valueSet.getVersion() + "|" + valueSet.getMeta().getVersionId() + "|"
+				+ valueSet.getExpansion().getIdentifier() + "|" + valueSet.getExpansion().getContains().size();
+	}
+
+	private static String getVersion(ElementDefinition elemDef) {
+		if (elemDef == null) {
+			return "";
+		}
+		StringBuilder version = new StringBuilder(elemDef.getPath() + "|" + elemDef.getMin() + "|" + elemDef.getMax()
+				+ "|" + elemDef.getMaxLength());
+		for (Coding code : elemDef.getCode()) {
+			version.append("|").append(code.getSystem()).append("#").append(code.getCode());
+		}
+		Reference binding = getBindingReference(elemDef);
+		if (binding != null) {
+			version.append("|").append(binding.getReference());
+		}
+		return version.toString();
+	}
+
+	public static int getDefaultParallelism() {
+		return defaultParallelism;
+	}
+
+	/**
+	 * @param parallelism Used for all conversions from now on
+	 */
+	public static void setDefaultParallelism(int parallelism) {
+		defaultParallelism = parallelism;
+	}
+
+	/**
+	 * @param enabled If true, dependencies are read in FHIR batch Bundles before single reads are attempted
+	 * @param size Maximum number of entries per Bundle
+	 */
+	public static void setBatchMode(boolean enabled, int size) {
+		batchMode = enabled;
+		batchSize = size;
+	}
+
+}
@@ -0,0 +1,188 @@
+/*******************************************************************************
+ * Copyright (c) 2017 - IT Center for Clinical Research, University of Luebeck
+ * Noemi Deppenwiese, Hannes Ulrich
+ ******************************************************************************/
+package converter;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+import org.hl7.fhir.dstu3.model.Coding;
+import org.hl7.fhir.dstu3.model.Questionnaire.QuestionnaireItemComponent;
+import org.hl7.fhir.dstu3.model.Questionnaire.QuestionnaireItemOptionComponent;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.hl7.fhir.dstu3.model.ValueSet;
+
+import emxModel.Attribute;
+import emxModel.Entity;
+import server.TerminologyCache;
+
+/**
+ * What was generated for a single Questionnaire item, together with a fingerprint of the item content it was
+ * generated from. Subitems are not part of the fingerprint, they have a state of their own.
+ */
+class ItemState {
+
+	private String fingerprint;
+
+	private Attribute attribute;
+
+	private Attribute compound;
+
+	private Entity codeListEntity;
+
+	private String codeListKey;
+
+	private List<Issue> issues;
+
+	/**
+	 * @param fingerprint see {@link #fingerprint(QuestionnaireItemComponent)}
+	 * @param attribute The Attribute generated for the item
+	 * @param compound The Attribute subitems are part of (the attribute itself or an additional one), may be null
+	 * @param codeListEntity may be null, may be shared with other items
+	 * @param codeListKey Identifies the code list if it can be shared, see {@link #codeListKey(List)}, may be null
+	 * @param issues Issues that occurred while parsing the item
+	 */
+	ItemState(String fingerprint, Attribute attribute, Attribute compound, Entity codeListEntity, String codeListKey,
+			List<Issue> issues) {
+		this.fingerprint = fingerprint;
+		this.attribute = attribute;
+		this.compound = compound;
+		this.codeListEntity = codeListEntity;
+		this.codeListKey = codeListKey;
+		this.issues = issues;
+	}
+
+	String getFingerprint() {
+		return fingerprint;
+	}
+
+	Attribute getAttribute() {
+		return attribute;
+	}
+
+	Attribute getCompound() {
+		return compound;
+	}
+
+	Entity getCodeListEntity() {
+		return codeListEntity;
+	}
+
+	/**
+	 * @param codeListEntity An equal code list generated for another item, used instead of the own one
+	 */
+	void setCodeListEntity(Entity codeListEntity) {
+		this.codeListEntity = codeListEntity;
+	}
+
+	String getCodeListKey() {
+		return codeListKey;
+	}
+
+	List<Issue> getIssues() {
+		return issues;
+	}
+
+	/**
+	 * Hashes everything of the item that is used for its conversion, except for its subitems (only whether
+	 * there are any). Must be computed before the definition is merged into the item.
+	 * @param item
+	 * @return SHA-256 of the item content as hex string
+	 */
+	static String fingerprint(QuestionnaireItemComponent item) {
+		return fingerprint(item, !item.getItem().isEmpty());
+	}
+
+	/**
+	 * @param item
+	 * @param hasSubitems
+	 * @return see {@link #fingerprint(QuestionnaireItemComponent)}
+	 */
+	static String fingerprint(QuestionnaireItemComponent item, boolean hasSubitems) {
+		StringBuilder content = new StringBuilder();
+		append(content, item.getLinkId());
+		append(content, item.getType() == null ? null : item.getType().toCode());
+		append(content, item.getDefinition());
+		append(content, item.getPrefix());
+		append(content, item.getText());
+		append(content, item.hasReadOnly() ? Boolean.toString(item.getReadOnly()) : null);
+		append(content, item.hasRequired() ? Boolean.toString(item.getRequired()) : null);
+		append(content, item.hasRepeats() ? Boolean.toString(item.getRepeats()) : null);
+		append(content, item.hasMaxLength() ? Integer.toString(item.getMaxLength()) : null);
+		for (Coding code : item.getCode()) {
+			append(content, code.getSystem());
+			append(content, code.getCode());
+			append(content, code.getDisplay());
+		}
+		if (item.hasOptions()) {
+			append(content, item.getOptions().getReference());
+			append(content, item.getOptions().getDisplay());
+		}
+		for (QuestionnaireItemOptionComponent option : item.getOption()) {
+			appendOption(content, option);
+		}
+		append(content, Boolean.toString(hasSubitems));
+		return hash(content);
+	}
+
+	/**
+	 * @param options Inline options of an item
+	 * @return Key of the code list generated for the options, the same for all items with equal options
+	 */
+	static String codeListKey(List<QuestionnaireItemOptionComponent> options) {
+		StringBuilder content = new StringBuilder();
+		for (QuestionnaireItemOptionComponent option : options) {
+			append(content, option.getValue() == null ? null : option.getValue().fhirType());
+			appendOption(content, option);
+		}
+		return "option " + hash(content);
+	}
+
+	/**
+	 * @param valueSet Resolved ValueSet of an item
+	 * @param reference The reference it was resolved from
+	 * @return Key of the code list generated for the ValueSet, its canonical URL and version if it has one
+	 */
+	static String codeListKey(ValueSet valueSet, Reference reference) {
+		if (valueSet.hasUrl()) {
+			return "ValueSet " + TerminologyCache.canonicalKey(valueSet.getUrl(), valueSet.getVersion());
+		}
+		return "ValueSet " + reference.getReference();
+	}
+
+	private static void appendOption(StringBuilder content, QuestionnaireItemOptionComponent option) {
+		if (option.getValue() instanceof Coding) {
+			Coding coding = (Coding) option.getValue();
+			append(content, coding.getSystem());
+			append(content, coding.getVersion());
+			append(content, coding.getCode());
+			append(content, coding.getDisplay());
+			append(content, Boolean.toString(coding.getUserSelected()));
+		} else if (option.getValue() != null) {
+			append(content, option.getValue().primitiveValue());
+		}
+	}
+
+	private static String hash(StringBuilder content) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(content.toString().getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder();
+			for (byte b : hash) {
+				hex.append(String.format("%02x", b));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform supports SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void append(StringBuilder content, String value) {
+		// Separator that does not occur in item content, so neighbouring fields can not be mixed up
+		content.append(value == null ? "" : value).append('\u0000');
+	}
+
+}
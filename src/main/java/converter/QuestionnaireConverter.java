@@ -4,9 +4,20 @@
  ******************************************************************************/
 package converter;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.zip.DataFormatException;
 
 import javax.naming.InvalidNameException;
@@ -32,6 +43,7 @@ import emxModel.Attribute;
 import emxModel.AttributeNonExistentException;
 import emxModel.EMX;
 import emxModel.EMXDataType;
+import emxModel.EMXTableWriter;
 import emxModel.Entity;
 import emxModel.IdAttributeOpts;
 import emxModel.Instance;
@@ -52,8 +64,39 @@ public class QuestionnaireConverter {
 	
 	private MOLGENISServerConnector connector;
 	
+	private DependencyPrefetcher dependencies;
+	
+	/**
+	 * Versions of the dependencies the items were converted with, null if not all of them were resolved
+	 */
+	private Map<String, String> dependencyVersions;
+	
+	private Entity mainEntity;
+	
+	/**
+	 * Issues not related to a single item
+	 */
+	private List<Issue> baseIssues;
+	
+	/**
+	 * State of every converted item by linkId, for incremental conversions of later versions
+	 */
+	private LinkedHashMap<String, ItemState> items;
+	
+	private boolean duplicateLinkIds;
+	
+	/**
+	 * Code list entities by key, see {@link ItemState#codeListKey(List)}, shared by all items using them
+	 */
+	private Map<String, Entity> codeLists;
+	
 	private static Map<QuestionnaireItemType,EMXDataType> typeMapping;
 	
+	/**
+	 * Converts top level items in parallel if set, see {@link #setParallelism(int)}
+	 */
+	private static ForkJoinPool itemPool;
+	
 	final static Logger logger = LoggerFactory.getLogger(QuestionnaireConverter.class);
 	
 	
@@ -62,25 +105,27 @@ public class QuestionnaireConverter {
 		this.fetcher = fetcher;
 		this.connector = connector;
 
-		// Populate Map once
-		if (typeMapping == null) {
-			typeMapping = new HashMap<QuestionnaireItemType, EMXDataType>();
-			typeMapping.put(QuestionnaireItemType.GROUP, EMXDataType.COMPOUND);
-			typeMapping.put(QuestionnaireItemType.BOOLEAN, EMXDataType.BOOL);
-			typeMapping.put(QuestionnaireItemType.DECIMAL, EMXDataType.DECIMAL);
-			typeMapping.put(QuestionnaireItemType.INTEGER, EMXDataType.INT);
-			typeMapping.put(QuestionnaireItemType.DATE, EMXDataType.DATE);
-			typeMapping.put(QuestionnaireItemType.DATETIME, EMXDataType.DATETIME);
-			typeMapping.put(QuestionnaireItemType.TIME, EMXDataType.DATETIME);
-			typeMapping.put(QuestionnaireItemType.STRING, EMXDataType.STRING);
-			typeMapping.put(QuestionnaireItemType.TEXT, EMXDataType.TEXT);
-			typeMapping.put(QuestionnaireItemType.URL, EMXDataType.HYPERLINK);
-			typeMapping.put(QuestionnaireItemType.CHOICE, EMXDataType.CATEGORICAL);
-			typeMapping.put(QuestionnaireItemType.OPENCHOICE, EMXDataType.CATEGORICAL);
-			typeMapping.put(QuestionnaireItemType.ATTACHMENT, EMXDataType.FILE);
+		// Populate Map once, conversions may be started concurrently
+		synchronized (QuestionnaireConverter.class) {
+			if (typeMapping == null) {
+				typeMapping = new HashMap<QuestionnaireItemType, EMXDataType>();
+				typeMapping.put(QuestionnaireItemType.GROUP, EMXDataType.COMPOUND);
+				typeMapping.put(QuestionnaireItemType.BOOLEAN, EMXDataType.BOOL);
+				typeMapping.put(QuestionnaireItemType.DECIMAL, EMXDataType.DECIMAL);
+				typeMapping.put(QuestionnaireItemType.INTEGER, EMXDataType.INT);
+				typeMapping.put(QuestionnaireItemType.DATE, EMXDataType.DATE);
+				typeMapping.put(QuestionnaireItemType.DATETIME, EMXDataType.DATETIME);
+				typeMapping.put(QuestionnaireItemType.TIME, EMXDataType.DATETIME);
+				typeMapping.put(QuestionnaireItemType.STRING, EMXDataType.STRING);
+				typeMapping.put(QuestionnaireItemType.TEXT, EMXDataType.TEXT);
+				typeMapping.put(QuestionnaireItemType.URL, EMXDataType.HYPERLINK);
+				typeMapping.put(QuestionnaireItemType.CHOICE, EMXDataType.CATEGORICAL);
+				typeMapping.put(QuestionnaireItemType.OPENCHOICE, EMXDataType.CATEGORICAL);
+				typeMapping.put(QuestionnaireItemType.ATTACHMENT, EMXDataType.FILE);
 			
-			typeMapping.put(QuestionnaireItemType.REFERENCE, EMXDataType.STRING);
-			typeMapping.put(QuestionnaireItemType.QUANTITY, EMXDataType.STRING);
+				typeMapping.put(QuestionnaireItemType.REFERENCE, EMXDataType.STRING);
+				typeMapping.put(QuestionnaireItemType.QUANTITY, EMXDataType.STRING);
+			}
 		}
 		try {
 			this.emx = new emxModel.EMX("fhir");
@@ -94,6 +139,8 @@ public class QuestionnaireConverter {
 		}
 		this.questionnaire = questionnaire;
 		this.outcome = new ConversionOutcome();
+		this.items = new LinkedHashMap<String, ItemState>();
+		this.codeLists = new HashMap<String, Entity>();
 
 	}
 
@@ -102,14 +149,42 @@ public class QuestionnaireConverter {
 		if(this.questionnaire == null){
 			return;
 		}
-		// Start conversion by generating EMX Identifier
-		//For some reason URL is 0..1, catch no URL
-		String emxEntityName = null;
-		if(this.questionnaire.getUrl() != null && !this.questionnaire.getUrl().isEmpty()){
-			emxEntityName = QuestionnaireConverter.generateEMXIDFromInvalidString(this.questionnaire.getUrl());
-		}else{
-			emxEntityName = QuestionnaireConverter.generateEMXIDFromInvalidString(this.questionnaire.getId());
+		Entity mainEntity = this.createMainEntity();
+		if (mainEntity == null) {
+			return;
 		}
+
+		// Resolve all referenced ValueSets and Element Definitions concurrently up front, so parsing the
+		// items below works on the resolved set instead of waiting for one request after another
+		if (this.dependencies == null) {
+			this.dependencies = new DependencyPrefetcher(this.fetcher, this.questionnaire, DependencyPrefetcher.getDefaultParallelism());
+			this.dependencies.prefetch();
+		}
+		this.dependencyVersions = this.dependencies.getVersions();
+
+		this.baseIssues = new ArrayList<Issue>(this.outcome.getIssues());
+
+		// Now the real work begins... parse the items!
+		// Iterate over first level items, sublevel items will be parsed by
+		// recursive calls
+		ForkJoinPool pool = getItemPool();
+		if (pool != null && this.questionnaire.getItem().size() > 1) {
+			this.parseItemsInParallel(pool, mainEntity);
+		} else {
+			for (QuestionnaireItemComponent item : this.questionnaire.getItem()) {
+				this.parseItem(item, mainEntity, null);
+			}
+		}
+		
+	}
+	
+	/**
+	 * Names the root package after the Questionnaire and adds the main entity with its tag and id attribute
+	 * @return the main entity, null if it could not be added
+	 */
+	private Entity createMainEntity() {
+		// Start conversion by generating EMX Identifier
+		String emxEntityName = this.getMainEntityName();
 		
 
 		// Rename root Package to pk+"emxidentifier" e.g."pk1234567890"
@@ -136,10 +211,11 @@ public class QuestionnaireConverter {
 			this.outcome.addError(IssueSeverity.FATAL, emxEntityName, "Unable to add main Entity. Aborted conversion");
 			e.printStackTrace();
 			// ..but if it does there's nothing we can do.
-			return;
+			return null;
 		}
 
 		mainEntity.setDescription(this.questionnaire.getDescription());
+		this.mainEntity = mainEntity;
 
 		// Add Tag with FHIR URL
 		try {
@@ -161,31 +237,434 @@ public class QuestionnaireConverter {
 			this.outcome.addError(IssueSeverity.ERROR, mainEntity.getFullName(), "Failed to add ID Attribute. Generated EMX will be invalid");
 			e.printStackTrace();
 		}
+		return mainEntity;
+	}
+	
+	/**
+	 * Converts a Questionnaire while it is read, every item is converted as soon as it is read (see
+	 * {@link StreamingQuestionnaireReader}). The converter must have been created without Questionnaire.
+	 * Dependencies are resolved when an item needs them instead of up front.
+	 * @param json Questionnaire JSON
+	 * @param reader
+	 * @throws IOException if the JSON can not be read, the conversion stops then
+	 */
+	public void convert(Reader json, StreamingQuestionnaireReader reader) throws IOException {
+		// The Attribute subitems are part of, for each level above the current item
+		List<Attribute> compounds = new ArrayList<Attribute>();
+		reader.read(json, new StreamingQuestionnaireReader.ItemHandler() {
+
+			@Override
+			public void start(Questionnaire questionnaire) {
+				QuestionnaireConverter.this.questionnaire = questionnaire;
+				if (!questionnaire.hasUrl() && !questionnaire.hasId()) {
+					QuestionnaireConverter.this.outcome.addError(IssueSeverity.FATAL, "Questionnaire",
+							"Questionnaire has neither url nor id, no entity name can be generated");
+					return;
+				}
+				QuestionnaireConverter.this.mainEntity = QuestionnaireConverter.this.createMainEntity();
+				QuestionnaireConverter.this.baseIssues = new ArrayList<Issue>(QuestionnaireConverter.this.outcome.getIssues());
+			}
+
+			@Override
+			public boolean item(QuestionnaireItemComponent item, boolean hasSubitems, int depth) {
+				if (QuestionnaireConverter.this.mainEntity == null) {
+					return false;
+				}
+				Attribute parentAttribute = depth == 0 ? null : compounds.get(depth - 1);
+				Attribute compound = QuestionnaireConverter.this.parseSingleItem(item,
+						QuestionnaireConverter.this.mainEntity, parentAttribute, hasSubitems);
+				while (compounds.size() > depth) {
+					compounds.remove(compounds.size() - 1);
+				}
+				compounds.add(compound);
+				return compound != null;
+			}
+		});
+		for (String element : reader.getIgnoredElements()) {
+			this.outcome.addError(IssueSeverity.WARNING, element, "Ignored because it follows the items");
+		}
+	}
+
+	/**
+	 * Converter for a single top level item. It shares the fetched dependencies with its parent but works on
+	 * its own EMX, so parts can be converted concurrently and merged afterwards.
+	 * @param parent
+	 * @param mainEntity
+	 * @throws NamingException
+	 */
+	private QuestionnaireConverter(QuestionnaireConverter parent, Entity mainEntity) throws NamingException {
+		this.fetcher = parent.fetcher;
+		this.questionnaire = parent.questionnaire;
+		this.dependencies = parent.dependencies;
+		this.outcome = new ConversionOutcome();
+		this.items = new LinkedHashMap<String, ItemState>();
+		this.codeLists = new HashMap<String, Entity>();
+		// Same names as the parent, so the length checks of full names give the same results
+		this.emx = new EMX(parent.emx.getName());
+		this.emx.addEntity(mainEntity.getName());
+	}
+	
+	/**
+	 * Converts every top level item (and its subitems) as a fork/join task into a separate EMX, then merges
+	 * the parts into this EMX in item order. Name clashes between parts are resolved like in the sequential
+	 * conversion, the first item in order keeps its name.
+	 * @param pool
+	 * @param mainEntity
+	 */
+	private void parseItemsInParallel(ForkJoinPool pool, Entity mainEntity) {
+		List<QuestionnaireItemComponent> items = this.questionnaire.getItem();
+		List<Callable<QuestionnaireConverter>> tasks = new ArrayList<Callable<QuestionnaireConverter>>();
+		for (QuestionnaireItemComponent item : items) {
+			tasks.add(() -> {
+				QuestionnaireConverter part = new QuestionnaireConverter(this, mainEntity);
+				part.parseItem(item, part.emx.getEntityByName(mainEntity.getName()), null);
+				return part;
+			});
+		}
+		List<Future<QuestionnaireConverter>> parts = pool.invokeAll(tasks);
+		for (int i = 0; i < items.size(); i++) {
+			try {
+				this.merge(parts.get(i).get(), mainEntity);
+			} catch (InterruptedException e) {
+				logger.debug("Conversion was interrupted", e);
+				this.outcome.addError(IssueSeverity.ERROR, items.get(i).getLinkId(), "Conversion was interrupted, the item is missing");
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException e) {
+				logger.error("Failed to convert item " + items.get(i).getLinkId(), e.getCause());
+				this.outcome.addError(IssueSeverity.ERROR, items.get(i).getLinkId(), "Failed to convert item, it is missing in the generated EMX");
+			}
+		}
+	}
+	
+	/**
+	 * Moves the entities, attributes, tags and issues of a separately converted part into this conversion
+	 * @param part
+	 * @param mainEntity
+	 */
+	private void merge(QuestionnaireConverter part, Entity mainEntity) {
+		Entity partMainEntity = part.emx.getEntityByName(mainEntity.getName());
+		// Code lists an earlier part generated as well are replaced by the earlier ones
+		Map<Entity, Entity> replaced = new HashMap<Entity, Entity>();
+		for (Map.Entry<String, Entity> codeList : part.codeLists.entrySet()) {
+			Entity existing = this.codeLists.get(codeList.getKey());
+			if (existing != null) {
+				replaced.put(codeList.getValue(), existing);
+			} else {
+				this.codeLists.put(codeList.getKey(), codeList.getValue());
+			}
+		}
+		for (Entity entity : new ArrayList<Entity>(part.emx.getEntities())) {
+			if (entity == partMainEntity || replaced.containsKey(entity)) {
+				continue;
+			}
+			for (Attribute attr : entity.getAttributes()) {
+				this.mergeTags(attr);
+			}
+			try {
+				this.emx.moveEntity(entity, entity.getName());
+			} catch (NamingException e) {
+				try {
+					this.emx.moveEntity(entity, QuestionnaireConverter.generateEMXIDFromInvalidString(entity.getName()));
+				} catch (NamingException e1) {
+					logger.debug("Failed to add Entity " + entity.getName(), e1);
+					this.outcome.addError(IssueSeverity.ERROR, entity.getName(), "Failed to add Entity, the generated EMX may be invalid");
+				}
+			}
+		}
+		for (Attribute attr : new ArrayList<Attribute>(partMainEntity.getAttributes())) {
+			this.mergeTags(attr);
+			if (replaced.containsKey(attr.getRefEntity())) {
+				attr.setRefEntity(replaced.get(attr.getRefEntity()));
+			}
+			try {
+				mainEntity.moveAttribute(attr, attr.getName());
+			} catch (NamingException e) {
+				try {
+					mainEntity.moveAttribute(attr, QuestionnaireConverter.generateEMXIDFromInvalidString(attr.getName()));
+				} catch (NamingException e1) {
+					logger.debug("Failed to add Attribute " + attr.getName(), e1);
+					this.outcome.addError(IssueSeverity.ERROR, attr.getName(), "Failed to add Attribute, the generated EMX may be invalid");
+				}
+			}
+		}
+		this.outcome.getIssues().addAll(part.outcome.getIssues());
+		for (Map.Entry<String, ItemState> item : part.items.entrySet()) {
+			if (replaced.containsKey(item.getValue().getCodeListEntity())) {
+				item.getValue().setCodeListEntity(replaced.get(item.getValue().getCodeListEntity()));
+			}
+			this.recordItem(item.getKey(), item.getValue());
+		}
+	}
+	
+	/**
+	 * Converts the Questionnaire starting from the snapshot of a conversion of an earlier version. Items are
+	 * compared by linkId and fingerprint, only the attributes and code list entities of changed items are
+	 * generated again, those of all others are reused. Falls back to a full conversion if the snapshot does not
+	 * fit, or if the versions of the dependencies (ValueSets and Element Definitions) differ from those of the
+	 * snapshot or are not known.
+	 * @param previous may be null. Must not be used again afterwards, the conversion continues on its model
+	 */
+	public void convert(ConversionSnapshot previous) {
+		if (this.questionnaire == null) {
+			return;
+		}
+		if (previous == null || !previous.getMainEntity().getName().equals(this.getMainEntityName())
+				|| previous.isNameChecked() != this.hasMOLGENISConnection()
+				|| hasDuplicateLinkIds(this.questionnaire.getItem(), new HashSet<String>())) {
+			this.convert();
+			return;
+		}
+		// Unchanged items may use a dependency that changed since, so all of them are resolved to compare
+		if (this.dependencies == null) {
+			this.dependencies = new DependencyPrefetcher(this.fetcher, this.questionnaire, DependencyPrefetcher.getDefaultParallelism());
+			this.dependencies.prefetch();
+		}
+		Map<String, String> versions = this.dependencies.getVersions();
+		if (versions == null || !versions.equals(previous.getDependencyVersions())) {
+			logger.debug("Dependencies changed or are not known, converting " + this.getMainEntityName() + " again");
+			this.convert();
+			return;
+		}
+		this.dependencyVersions = versions;
+		this.emx = previous.getEmx();
+		this.emx.setServerNameChecker(this.connector);
+		this.emx.setDescription(
+				"Package for all entities generated from the FHIR Questionnaire " + this.questionnaire.getUrl());
+		this.emx.invalidateTables();
+		this.mainEntity = previous.getMainEntity();
+		this.mainEntity.setDescription(this.questionnaire.getDescription());
+		this.baseIssues = previous.getIssues();
+		this.outcome.getIssues().addAll(this.baseIssues);
+
+		Map<String, ItemState> previousItems = previous.getItems();
+		List<QuestionnaireItemComponent> changed = new ArrayList<QuestionnaireItemComponent>();
+		Set<String> unchanged = new HashSet<String>();
+		collectChangedItems(this.questionnaire.getItem(), previousItems, changed, unchanged);
+		logger.debug(changed.size() + " items changed, " + unchanged.size() + " are reused");
+
+		// Code lists of reused items are kept, changed items may share them again
+		Set<Entity> keptCodeLists = new HashSet<Entity>();
+		for (String linkId : unchanged) {
+			ItemState state = previousItems.get(linkId);
+			if (state.getCodeListEntity() != null) {
+				keptCodeLists.add(state.getCodeListEntity());
+				if (state.getCodeListKey() != null) {
+					this.codeLists.put(state.getCodeListKey(), state.getCodeListEntity());
+				}
+			}
+		}
+
+		// Remove what was generated for changed and removed items
+		Set<Tag> removedTags = new HashSet<Tag>();
+		for (Map.Entry<String, ItemState> item : previousItems.entrySet()) {
+			if (!unchanged.contains(item.getKey())) {
+				this.removeGenerated(item.getValue(), removedTags, keptCodeLists);
+			}
+		}
+		this.removeUnusedTags(removedTags);
 
-		// Now the real work begins... parse the items!
-		// Iterate over first level items, sublevel items will be parsed by
-		// recursive calls
 		for (QuestionnaireItemComponent item : this.questionnaire.getItem()) {
-			this.parseItem(item, mainEntity, null);
+			this.updateItem(item, previousItems, unchanged, null);
+		}
+	}
+	
+	/**
+	 * Reuses the state of an unchanged item or parses it again, then does the same for its subitems
+	 * @param item
+	 * @param previousItems
+	 * @param unchanged linkIds of the items that can be reused
+	 * @param parentAttribute Attribute to use in partOfAttribute of the item (may be null)
+	 */
+	private void updateItem(QuestionnaireItemComponent item, Map<String, ItemState> previousItems,
+			Set<String> unchanged, Attribute parentAttribute) {
+		if (item.getType().equals(QuestionnaireItemType.DISPLAY)) {
+			return;
+		}
+		Attribute compound = null;
+		if (unchanged.contains(item.getLinkId())) {
+			ItemState state = previousItems.get(item.getLinkId());
+			// The item may have been moved or its parent may have been generated again
+			state.getAttribute().setPartOfAttribute(parentAttribute);
+			if (state.getCompound() != null && state.getCompound() != state.getAttribute()) {
+				state.getCompound().setPartOfAttribute(parentAttribute);
+			}
+			this.outcome.getIssues().addAll(state.getIssues());
+			this.recordItem(item.getLinkId(), state);
+			compound = state.getCompound();
+			// Same column order as if the Questionnaire was converted from scratch
+			this.mainEntity.moveAttributeToEnd(state.getAttribute());
+			if (compound != null && compound != state.getAttribute()) {
+				this.mainEntity.moveAttributeToEnd(compound);
+			}
+		} else {
+			compound = this.parseSingleItem(item, this.mainEntity, parentAttribute);
+		}
+		if (compound == null) {
+			return;
+		}
+		for (QuestionnaireItemComponent subItem : item.getItem()) {
+			this.updateItem(subItem, previousItems, unchanged, compound);
+		}
+	}
+	
+	private static void collectChangedItems(List<QuestionnaireItemComponent> items, Map<String, ItemState> previousItems,
+			List<QuestionnaireItemComponent> changed, Set<String> unchanged) {
+		for (QuestionnaireItemComponent item : items) {
+			if (item.getType().equals(QuestionnaireItemType.DISPLAY)) {
+				continue;
+			}
+			ItemState state = previousItems.get(item.getLinkId());
+			if (state != null && state.getFingerprint().equals(ItemState.fingerprint(item))) {
+				unchanged.add(item.getLinkId());
+			} else {
+				changed.add(item);
+			}
+			collectChangedItems(item.getItem(), previousItems, changed, unchanged);
+		}
+	}
+	
+	private static boolean hasDuplicateLinkIds(List<QuestionnaireItemComponent> items, Set<String> linkIds) {
+		for (QuestionnaireItemComponent item : items) {
+			if (!linkIds.add(item.getLinkId()) || hasDuplicateLinkIds(item.getItem(), linkIds)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Removes the attributes and the code list entity generated for an item from the model
+	 * @param state
+	 * @param removedTags Collects the tags of the removed attributes
+	 * @param keptCodeLists Code list entities still used by other items, these are not removed
+	 */
+	private void removeGenerated(ItemState state, Set<Tag> removedTags, Set<Entity> keptCodeLists) {
+		if (state.getAttribute() != null) {
+			removedTags.addAll(state.getAttribute().getTags());
+			this.mainEntity.removeAttribute(state.getAttribute());
+		}
+		if (state.getCompound() != null && state.getCompound() != state.getAttribute()) {
+			this.mainEntity.removeAttribute(state.getCompound());
+		}
+		if (state.getCodeListEntity() != null && !keptCodeLists.contains(state.getCodeListEntity())) {
+			this.emx.removeEntity(state.getCodeListEntity());
+		}
+	}
+	
+	/**
+	 * Removes those of the given tags from the tag namespace that are no longer used anywhere in the model
+	 * @param candidates
+	 */
+	private void removeUnusedTags(Set<Tag> candidates) {
+		if (candidates.isEmpty()) {
+			return;
+		}
+		Set<Tag> used = new HashSet<Tag>(this.emx.getTags());
+		for (Entity entity : this.emx.getEntities()) {
+			used.addAll(entity.getTags());
+			for (Attribute attr : entity.getAttributes()) {
+				used.addAll(attr.getTags());
+			}
+		}
+		for (Tag tag : candidates) {
+			if (!used.contains(tag)) {
+				this.emx.removeTag(tag.getIdentifier());
+			}
+		}
+	}
+	
+	/**
+	 * @param dependencies Already prefetched dependencies of this converters Questionnaire, used by
+	 * {@link #convert()} and {@link #convert(ConversionSnapshot)} instead of prefetching them again
+	 */
+	public void setDependencies(DependencyPrefetcher dependencies) {
+		this.dependencies = dependencies;
+	}
+
+	/**
+	 * @return State of this conversion to convert later versions of the Questionnaire incrementally, null if
+	 * that is not possible (e.g. conversion failed or linkIds are not unique)
+	 */
+	public ConversionSnapshot getSnapshot() {
+		if (this.mainEntity == null || this.duplicateLinkIds) {
+			return null;
+		}
+		return new ConversionSnapshot(this.emx, this.mainEntity, this.hasMOLGENISConnection(), this.baseIssues, this.items,
+				this.dependencyVersions);
+	}
+	
+	/**
+	 * @return EMX identifier of the main entity, generated from the Questionnaire URL or id
+	 */
+	private String getMainEntityName() {
+		//For some reason URL is 0..1, catch no URL
+		if(this.questionnaire.getUrl() != null && !this.questionnaire.getUrl().isEmpty()){
+			return QuestionnaireConverter.generateEMXIDFromInvalidString(this.questionnaire.getUrl());
+		}
+		return QuestionnaireConverter.generateEMXIDFromInvalidString(this.questionnaire.getId());
+	}
+	
+	/**
+	 * Replaces the tags of the given attribute with those of the same identifier in this EMX
+	 * @param attr
+	 */
+	private void mergeTags(Attribute attr) {
+		List<Tag> tags = attr.getTags();
+		for (int i = 0; i < tags.size(); i++) {
+			tags.set(i, this.emx.mergeTag(tags.get(i)));
 		}
-		
 	}
 
 	
 	
 	/**
-	 * Parses Single Questionnaire item
+	 * Parses Single Questionnaire item and all of its subitems
 	 * @param item The item to be parsed
 	 * @param entity The Entity to add the parsed Attribute to
 	 * @param parentAttribute Attribute to use in partOfAttribute of the parsed Attribute (may be null)
 	 */
 	private void parseItem(QuestionnaireItemComponent item, Entity entity, Attribute parentAttribute) {
+		Attribute compound = this.parseSingleItem(item, entity, parentAttribute);
+		if (compound == null) {
+			return;
+		}
+		//Recursive call for all subitems
+		for(QuestionnaireItemComponent subItem:item.getItem()){
+			this.parseItem(subItem, entity, compound);
+		}
+	}
+	
+	/**
+	 * Parses Single Questionnaire item without its subitems and records what was generated for it
+	 * @param item The item to be parsed
+	 * @param entity The Entity to add the parsed Attribute to
+	 * @param parentAttribute Attribute to use in partOfAttribute of the parsed Attribute (may be null)
+	 * @return The Attribute the subitems are part of, null if there are none
+	 */
+	private Attribute parseSingleItem(QuestionnaireItemComponent item, Entity entity, Attribute parentAttribute) {
+		return this.parseSingleItem(item, entity, parentAttribute, !item.getItem().isEmpty());
+	}
+	
+	/**
+	 * @param item The item to be parsed, its subitems are not used
+	 * @param entity The Entity to add the parsed Attribute to
+	 * @param parentAttribute Attribute to use in partOfAttribute of the parsed Attribute (may be null)
+	 * @param hasSubitems
+	 * @return The Attribute the subitems are part of, null if there are none
+	 */
+	private Attribute parseSingleItem(QuestionnaireItemComponent item, Entity entity, Attribute parentAttribute,
+			boolean hasSubitems) {
 
 
 		// Skip display items
 		if (item.getType().equals(QuestionnaireItemType.DISPLAY)) {
-			return;
+			return null;
 		}
+		
+		// Before the definition is merged into the item
+		String fingerprint = ItemState.fingerprint(item, hasSubitems);
+		int issueCount = this.outcome.getIssues().size();
 
 		// Add attribute for this Item
 		Attribute attr = null;
@@ -226,13 +705,31 @@ public class QuestionnaireConverter {
 		attr = this.addCodesAsTagsToAttribute(item.getCode(), attr);
 
 		//Parse Option(s)
+		Entity codeListEntity = null;
+		String codeListKey = null;
+		ValueSet valueSet = null;
 		if (item.getType().equals(QuestionnaireItemType.CHOICE)
 				|| item.getType().equals(QuestionnaireItemType.OPENCHOICE)) {
+			// Items with the same ValueSet or equal options share one code list
+			if (!item.getOptions().isEmpty()) {
+				valueSet = this.resolveValueSetReference(item.getOptions());
+				if (valueSet != null) {
+					codeListKey = ItemState.codeListKey(valueSet, item.getOptions());
+				}
+			} else if (!item.getOption().isEmpty()) {
+				codeListKey = ItemState.codeListKey(item.getOption());
+			}
+			codeListEntity = codeListKey == null ? null : this.codeLists.get(codeListKey);
+		}
+		if (codeListEntity != null) {
+			attr.setRefEntity(codeListEntity);
+			attr.setDataType(EMXDataType.CATEGORICAL);
+		} else if (item.getType().equals(QuestionnaireItemType.CHOICE)
+				|| item.getType().equals(QuestionnaireItemType.OPENCHOICE)) {
 			//Prepare Entity
 			// Generate new Entity for Options (in RootPackage)
 			// Create Entity
 			String entityName = attr.getName() + "Enum";
-			Entity codeListEntity = null;
 			try {
 				codeListEntity = this.emx.addEntity(entityName);
 			} catch (NamingException e) {
@@ -252,12 +749,12 @@ public class QuestionnaireConverter {
 			
 			//If Options are given in ValueSet
 			if (!item.getOptions().isEmpty()) {
-				ValueSet valueSet = fetcher.resolveValueSetReference(questionnaire,item.getOptions());
 				if(valueSet != null){
 					codeListEntity = parseValueSet(valueSet, codeListEntity);
 				}else{
 					//Resoving Value Set Reference was not possible. Build Attribute instead
 					this.emx.removeEntity(codeListEntity);
+					codeListEntity = null;
 					attr.setRefEntity(null);
 					attr.setDataType(EMXDataType.TEXT);
 					attr.setDescription("Contains codes from: ");
@@ -279,20 +776,21 @@ public class QuestionnaireConverter {
 						logger.error("Questionnaire has empty option list");
 				}
 			}
+			if (codeListKey != null) {
+				this.codeLists.put(codeListKey, codeListEntity);
+			}
 		}
 
 		// If Subitems: build compound
-		if(!item.getItem().isEmpty()){
+		Attribute compound = null;
+		Attribute compoundAttr = null;
+		if(hasSubitems){
 			//Easy case
 			if(item.getType().equals(QuestionnaireItemType.GROUP)){
 				attr.setDataType(EMXDataType.COMPOUND);
-				//Recursive call for all subitems
-				for(QuestionnaireItemComponent subItem:item.getItem()){
-					this.parseItem(subItem, entity, attr);
-				}
+				compound = attr;
 			}else{
 				//Add second Attribute to use as compound because compound attributes are abstract but this item is not of abstract GROUP type
-				Attribute compoundAttr = null;
 				try {
 					compoundAttr = entity.addAttribute(attr.getName()+"Comp");
 				} catch (NamingException e) {
@@ -302,12 +800,20 @@ public class QuestionnaireConverter {
 				compoundAttr.setDataType(EMXDataType.COMPOUND);
 				//enable nesting
 				compoundAttr.setPartOfAttribute(attr.getPartOfAttribute());
-				//Recursive call for all subitems
-				for(QuestionnaireItemComponent subItem:item.getItem()){
-					this.parseItem(subItem, entity, compoundAttr);
-				}
+				compound = compoundAttr;
 			}
 		}
+		
+		List<Issue> issues = new ArrayList<Issue>(this.outcome.getIssues().subList(issueCount, this.outcome.getIssues().size()));
+		this.recordItem(item.getLinkId(), new ItemState(fingerprint, attr, compound, codeListEntity, codeListKey, issues));
+		return compound;
+	}
+	
+	private void recordItem(String linkId, ItemState state) {
+		if (this.items.put(linkId, state) != null) {
+			// Items can not be told apart, see getSnapshot()
+			this.duplicateLinkIds = true;
+		}
 	}
 	
 	/**
@@ -379,39 +885,74 @@ public class QuestionnaireConverter {
 		
 		parseContainsElements(vs.getExpansion().getContains(), codeListEntity, code, system, version, display, inactive);
 		
+		//Large expansions arrive in pages, parse the remaining ones as they come in
+		if(fetcher != null){
+			final Attribute systemAttr = system, versionAttr = version, displayAttr = display, inactiveAttr = inactive;
+			boolean complete = fetcher.streamRemainingExpansionPages(vs, page -> parseContainsElements(page, codeListEntity, code, systemAttr, versionAttr, displayAttr, inactiveAttr));
+			if(!complete){
+				this.outcome.addError(IssueSeverity.WARNING, codeListEntity.getName(), "Not all codes of "+vs.getUrl()+" could be received, the code list is incomplete.");
+			}
+		}
+		
 		return codeListEntity;
 	}
 	
 	
 	public Entity parseContainsElements(List<ValueSetExpansionContainsComponent> containsList, Entity codeListEntity,
 			Attribute code, Attribute system, Attribute version, Attribute display, Attribute inactive) {
-		// Parse all Contains Elements
+		// Attributes that could not be created are left out, see parseValueSet
+		Attribute[] attributes = {code, display, system, version, inactive};
+		int[] positions = new int[attributes.length];
+		int count = 0;
+		for (int i = 0; i < attributes.length; i++) {
+			if (attributes[i] != null) {
+				positions[count] = i;
+				attributes[count++] = attributes[i];
+			}
+		}
+		attributes = Arrays.copyOf(attributes, count);
+		// Parse all Contains Elements, rows are appended in bulk
+		List<String[]> rows = new ArrayList<String[]>(containsList.size());
 		for (ValueSetExpansionContainsComponent contains : containsList) {
-			Instance entry = null;
 			if (!(contains.getCode() == null || (contains.hasAbstract() && contains.getAbstract() == true))) {
-				entry = codeListEntity.addInstance();
-				try {
-					entry.addValue(code, contains.getCode());
-					entry.addValue(display, contains.getDisplay());
-					entry.addValue(system, contains.getVersion());
-					entry.addValue(version, contains.getVersion());
-					entry.addValue(inactive, Boolean.toString(contains.getInactive()));
-				} catch (InvalidAttributeValueException | NameAlreadyBoundException | DataFormatException
-						| AttributeNonExistentException e) {
-					this.outcome.addError(IssueSeverity.ERROR, codeListEntity.getName(),
-							"Failed to add some Attribute information for " + contains.getCode()
-									+ " The corresponding Instance will lack some information and may be invalid.");
-					e.printStackTrace();
+				String[] values = {contains.getCode(), contains.getDisplay(), contains.getVersion(), contains.getVersion(),
+						Boolean.toString(contains.getInactive())};
+				String[] row = new String[count];
+				for (int i = 0; i < count; i++) {
+					row[i] = values[positions[i]];
 				}
+				rows.add(row);
 			}
 			
 			if (contains.getContains() != null && (!contains.getContains().isEmpty())) {
+				// Keep the order of the expansion
+				this.addCodeListRows(codeListEntity, attributes, rows);
+				rows.clear();
 				parseContainsElements(contains.getContains(), codeListEntity, inactive, inactive, inactive, inactive,
 						inactive);
 			}
 		}
+		this.addCodeListRows(codeListEntity, attributes, rows);
 		return codeListEntity;
 	}
+	
+	private void addCodeListRows(Entity codeListEntity, Attribute[] attributes, List<String[]> rows) {
+		if (rows.isEmpty()) {
+			return;
+		}
+		try {
+			codeListEntity.addInstances(attributes, rows, (row, e) -> {
+				logger.debug("Failed to add Code " + row[0], e);
+				this.outcome.addError(IssueSeverity.ERROR, codeListEntity.getName(),
+						"Failed to add some Attribute information for " + row[0]
+								+ " The corresponding Instance will lack some information and may be invalid.");
+			});
+		} catch (InvalidAttributeValueException | AttributeNonExistentException e) {
+			logger.debug("Failed to add Codes to " + codeListEntity.getName(), e);
+			this.outcome.addError(IssueSeverity.ERROR, codeListEntity.getName(),
+					"Failed to add " + rows.size() + " Codes: " + e.getMessage());
+		}
+	}
 	/**
 	 * Parses all "option" elements of the given item into an entity with an instance for each option.
 	 * @param options
@@ -518,14 +1059,23 @@ public class QuestionnaireConverter {
 	public QuestionnaireItemComponent parseElementdefinitionIntoEmptyItemFields(QuestionnaireItemComponent item){
 	
 		String uri = item.getDefinition();
-		ElementDefinition elemDef = fetcher.resolveElementDefinitionURI(uri);
+		ElementDefinition elemDef = null;
+		if(this.dependencies != null && this.dependencies.hasDefinition(uri)){
+			elemDef = this.dependencies.getDefinition(uri);
+		}else{
+			elemDef = fetcher.resolveElementDefinitionURI(uri);
+		}
 		
-		// Merge code lists
+		// Merge code lists. The definition is shared by all conversions, so its codings are copied
+		List<Coding> definitionCodes = new ArrayList<Coding>();
+		for (Coding code : elemDef.getCode()) {
+			definitionCodes.add(code.copy());
+		}
 		if (item.hasCode() && elemDef.hasCode()) {
-			item.getCode().addAll(elemDef.getCode());
+			item.getCode().addAll(definitionCodes);
 		} else {
 			if ((!item.hasCode()) && elemDef.hasCode()) {
-				item.setCode(elemDef.getCode());
+				item.setCode(definitionCodes);
 			}
 		}
 		
@@ -544,7 +1094,7 @@ public class QuestionnaireConverter {
 		//options
 		if((!item.hasOptions())&&elemDef.hasBinding()){
 			try {
-				item.setOptions(elemDef.getBinding().getValueSetReference());
+				item.setOptions(elemDef.getBinding().getValueSetReference().copy());
 			} catch (FHIRException e) {
 				e.printStackTrace();
 				logger.debug("Attempting to generate Reference from URI...");
@@ -563,6 +1113,19 @@ public class QuestionnaireConverter {
 	}
 	
 	
+	/**
+	 * Uses the prefetched ValueSet if there is one, asks the fetcher otherwise
+	 * @param reference
+	 * @return Either an expanded valueSet or null
+	 */
+	private ValueSet resolveValueSetReference(Reference reference){
+		if(this.dependencies != null && this.dependencies.hasValueSet(reference)){
+			return this.dependencies.getValueSet(reference);
+		}
+		return fetcher.resolveValueSetReference(questionnaire, reference);
+	}
+	
+	
 	private Attribute addCodesAsTagsToAttribute(List<Coding> codes, Attribute attr) {
 
 		for (Coding coding : codes) {
@@ -594,6 +1157,7 @@ public class QuestionnaireConverter {
 	public ConversionOutcome getOutcome(boolean withTags) {
 		if(this.emx.getEntities().isEmpty()){
 			ConversionOutcome emptyEMX = new ConversionOutcome();
+			emptyEMX.getIssues().addAll(this.outcome.getIssues());
 			emptyEMX.addError(IssueSeverity.FATAL, "Questionnaire", "Could not generate any Entity");
 			return emptyEMX;
 		}
@@ -601,6 +1165,22 @@ public class QuestionnaireConverter {
 		return this.outcome;
 	}
 	
+	/**
+	 * Like {@link #getOutcome(boolean)}, but the tables are not generated. They are written straight from the
+	 * model by {@link ConversionOutcome#writeArchive(java.io.OutputStream)}, so the model must not be changed
+	 * until then.
+	 * @param withTags
+	 * @return
+	 */
+	public ConversionOutcome getStreamingOutcome(boolean withTags) {
+		if(this.emx.getEntities().isEmpty()){
+			return this.getOutcome(withTags);
+		}
+		this.outcome.setEmxTables(null);
+		this.outcome.setTableWriter(new EMXTableWriter(this.emx, withTags));
+		return this.outcome;
+	}
+	
 	/**
 	 * Mainly for Test Purposes, use with Caution!
 	 * @return
@@ -609,6 +1189,21 @@ public class QuestionnaireConverter {
 		return this.emx;
 	}
 	
+	private static synchronized ForkJoinPool getItemPool() {
+		return itemPool;
+	}
+	
+	/**
+	 * @param threads Number of threads used to convert the top level items of one Questionnaire in parallel.
+	 * Values < 2 convert them sequentially. All conversions share the threads.
+	 */
+	public static synchronized void setParallelism(int threads) {
+		if (itemPool != null) {
+			itemPool.shutdown();
+		}
+		itemPool = threads > 1 ? new ForkJoinPool(threads) : null;
+	}
+	
 	private boolean hasMOLGENISConnection(){
 		return this.connector != null;
 	}
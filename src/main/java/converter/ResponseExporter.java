@@ -0,0 +1,240 @@
+/*******************************************************************************
+ * Copyright (c) 2017 - IT Center for Clinical Research, University of Luebeck
+ * Noemi Deppenwiese, Hannes Ulrich
+ ******************************************************************************/
+package converter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hl7.fhir.dstu3.model.Attachment;
+import org.hl7.fhir.dstu3.model.Coding;
+import org.hl7.fhir.dstu3.model.DateType;
+import org.hl7.fhir.dstu3.model.PrimitiveType;
+import org.hl7.fhir.dstu3.model.Quantity;
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.hl7.fhir.dstu3.model.QuestionnaireResponse;
+import org.hl7.fhir.dstu3.model.QuestionnaireResponse.QuestionnaireResponseItemAnswerComponent;
+import org.hl7.fhir.dstu3.model.QuestionnaireResponse.QuestionnaireResponseItemComponent;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.hl7.fhir.dstu3.model.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import emxModel.Attribute;
+import emxModel.EMXDataType;
+import emxModel.Entity;
+
+/**
+ * Writes QuestionnaireResponses as data rows of the main entity of a conversion, one row per response. Answers
+ * are mapped by linkId onto the attributes generated for the items, nested items are flattened into the same
+ * row. Rows are written one at a time, so responses can be streamed from a server without keeping them.
+ * Multiple answers of one item (repeating items or groups) are written comma separated into STRING and TEXT
+ * columns, other columns hold a single value and only get the first answer, see {@link #getTruncatedLinkIds()}.
+ */
+public class ResponseExporter {
+
+	final static Logger logger = LoggerFactory.getLogger(ResponseExporter.class);
+
+	private final static String delimiter = "\t";
+
+	private final static String newline = "\n";
+
+	private Entity mainEntity;
+
+	private List<Attribute> columns;
+
+	/**
+	 * Column index by linkId, only for items that can hold values
+	 */
+	private Map<String, Integer> columnsByLinkId;
+
+	private Set<String> unknownLinkIds;
+
+	private Set<String> truncatedLinkIds;
+
+	private long rows;
+
+	/**
+	 * @param snapshot Snapshot of the conversion of the Questionnaire the responses answer, see
+	 * {@link QuestionnaireConverter#getSnapshot()}
+	 */
+	public ResponseExporter(ConversionSnapshot snapshot) {
+		this.mainEntity = snapshot.getMainEntity();
+		this.columns = this.mainEntity.getAttributes();
+		this.columnsByLinkId = new HashMap<String, Integer>();
+		for (Map.Entry<String, ItemState> item : snapshot.getItems().entrySet()) {
+			Attribute attr = item.getValue().getAttribute();
+			if (attr != null && attr.getDataType() != EMXDataType.COMPOUND) {
+				int column = this.columns.indexOf(attr);
+				if (column >= 0) {
+					this.columnsByLinkId.put(item.getKey(), column);
+				}
+			}
+		}
+		this.unknownLinkIds = new LinkedHashSet<String>();
+		this.truncatedLinkIds = new LinkedHashSet<String>();
+	}
+
+	/**
+	 * @return Name of the table the rows belong to
+	 */
+	public String getTableName() {
+		return this.mainEntity.getFullName();
+	}
+
+	/**
+	 * Writes the header row, the same as the one of the generated (empty) entity table
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeHeader(Writer out) throws IOException {
+		for (int i = 0; i < this.columns.size(); i++) {
+			if (i > 0) {
+				out.write(delimiter);
+			}
+			out.write(this.columns.get(i).getName());
+		}
+	}
+
+	/**
+	 * Writes one row with all answers of the response. The AUTO id column is left empty.
+	 * @param response
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeRow(QuestionnaireResponse response, Writer out) throws IOException {
+		String[] values = new String[this.columns.size()];
+		this.collect(response.getItem(), values);
+		out.write(newline);
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) {
+				out.write(delimiter);
+			}
+			if (values[i] != null) {
+				out.write(values[i]);
+			}
+		}
+		this.rows++;
+	}
+
+	/**
+	 * @return number of rows written
+	 */
+	public long getRows() {
+		return rows;
+	}
+
+	/**
+	 * @return linkIds of answered items the Questionnaire does not contain (or that hold no values), their
+	 * answers were left out
+	 */
+	public Set<String> getUnknownLinkIds() {
+		return unknownLinkIds;
+	}
+
+	/**
+	 * @return linkIds of items answered more than once in one response whose column holds a single value (e.g.
+	 * categorical, int or date), only their first answer was written
+	 */
+	public Set<String> getTruncatedLinkIds() {
+		return truncatedLinkIds;
+	}
+
+	/**
+	 * @param response
+	 * @param questionnaire
+	 * @return true if the response references the Questionnaire by its id or canonical URL
+	 */
+	public static boolean isResponseTo(QuestionnaireResponse response, Questionnaire questionnaire) {
+		String reference = response.getQuestionnaire().getReference();
+		if (reference == null) {
+			return false;
+		}
+		if (questionnaire.hasUrl() && (reference.equals(questionnaire.getUrl()) || reference.startsWith(questionnaire.getUrl() + "|"))) {
+			return true;
+		}
+		String id = questionnaire.getIdElement().getIdPart();
+		return id != null && (reference.equals("Questionnaire/" + id) || reference.endsWith("/Questionnaire/" + id)
+				|| reference.contains("Questionnaire/" + id + "/_history/"));
+	}
+
+	private void collect(List<QuestionnaireResponseItemComponent> items, String[] values) {
+		for (QuestionnaireResponseItemComponent item : items) {
+			if (item.hasAnswer()) {
+				Integer column = this.columnsByLinkId.get(item.getLinkId());
+				if (column == null) {
+					this.unknownLinkId(item.getLinkId());
+				}
+				for (QuestionnaireResponseItemAnswerComponent answer : item.getAnswer()) {
+					if (column != null && answer.getValue() != null) {
+						Attribute attr = this.columns.get(column);
+						String value = format(answer.getValue(), attr);
+						if (values[column] == null) {
+							values[column] = value;
+						} else if (isList(attr)) {
+							values[column] = values[column] + "," + value;
+						} else if (this.truncatedLinkIds.add(item.getLinkId())) {
+							logger.debug("Only the first answer of " + item.getLinkId() + " fits into its column");
+						}
+					}
+					// Items nested below an answer
+					this.collect(answer.getItem(), values);
+				}
+			}
+			this.collect(item.getItem(), values);
+		}
+	}
+
+	/**
+	 * @param attr
+	 * @return true if the column can hold several answers, MOLGENIS rejects lists in all other columns
+	 */
+	private static boolean isList(Attribute attr) {
+		return attr.getDataType() == EMXDataType.STRING || attr.getDataType() == EMXDataType.TEXT;
+	}
+
+	private void unknownLinkId(String linkId) {
+		if (this.unknownLinkIds.add(linkId)) {
+			logger.debug("Skipping answers of unknown item " + linkId);
+		}
+	}
+
+	/**
+	 * @param value
+	 * @param attr
+	 * @return The answer as it is written in EMX, codes and options as the identifiers of the code list entity
+	 */
+	static String format(Type value, Attribute attr) {
+		String formatted;
+		if (value instanceof Coding) {
+			formatted = ((Coding) value).getCode();
+		} else if (value instanceof DateType && attr.getDataType() == EMXDataType.CATEGORICAL) {
+			// Same as the date options of the code list, see parseOptionList
+			formatted = ((DateType) value).toHumanDisplayLocalTimezone();
+		} else if (value instanceof PrimitiveType) {
+			formatted = ((PrimitiveType<?>) value).getValueAsString();
+		} else if (value instanceof Attachment) {
+			formatted = ((Attachment) value).getUrl();
+		} else if (value instanceof Reference) {
+			formatted = ((Reference) value).getReference();
+		} else if (value instanceof Quantity) {
+			Quantity quantity = (Quantity) value;
+			formatted = quantity.getValue() == null ? null : quantity.getValue().toPlainString()
+					+ (quantity.hasUnit() ? " " + quantity.getUnit() : "");
+		} else {
+			formatted = null;
+		}
+		if (formatted == null) {
+			return "";
+		}
+		// Tabs and line breaks would break the table
+		return formatted.replaceAll("[\\t\\r\\n]+", " ");
+	}
+
+}
@@ -0,0 +1,330 @@
+/*******************************************************************************
+ * Copyright (c) 2017 - IT Center for Clinical Research, University of Luebeck
+ * Noemi Deppenwiese, Hannes Ulrich
+ ******************************************************************************/
+package converter;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.hl7.fhir.dstu3.model.Coding;
+import org.hl7.fhir.dstu3.model.DateType;
+import org.hl7.fhir.dstu3.model.IntegerType;
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.hl7.fhir.dstu3.model.Questionnaire.QuestionnaireItemComponent;
+import org.hl7.fhir.dstu3.model.Questionnaire.QuestionnaireItemOptionComponent;
+import org.hl7.fhir.dstu3.model.Questionnaire.QuestionnaireItemType;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.hl7.fhir.dstu3.model.StringType;
+import org.hl7.fhir.dstu3.model.TimeType;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import ca.uhn.fhir.context.FhirContext;
+
+/**
+ * Reads Questionnaire JSON with a streaming parser and hands every item to an {@link ItemHandler} as soon as
+ * its own elements are read, before its subitems. Only the elements used for the conversion are kept, items
+ * are not collected, so memory use depends on the nesting depth instead of the size of the document.
+ * Everything but the items is parsed with HAPI once the first item is reached. Elements are expected in the
+ * order of the FHIR specification (as written by HAPI and most servers): elements of the Questionnaire or of
+ * an item that follow its items are ignored, except for the linkId and type of an item, its subitems are kept
+ * in memory until these are read.
+ */
+public class StreamingQuestionnaireReader {
+
+	final static Logger logger = LoggerFactory.getLogger(StreamingQuestionnaireReader.class);
+
+	/**
+	 * Item elements used by the conversion, all others are skipped
+	 */
+	private final static Set<String> ITEM_ELEMENTS = new HashSet<String>(Arrays.asList("linkId", "definition",
+			"code", "prefix", "text", "type", "required", "repeats", "readOnly", "maxLength", "options", "option"));
+
+	public interface ItemHandler {
+
+		/**
+		 * Called once, before the first item
+		 * @param questionnaire All elements of the Questionnaire but its items
+		 */
+		void start(Questionnaire questionnaire);
+
+		/**
+		 * @param item The item without its subitems
+		 * @param hasSubitems
+		 * @param depth 0 for top level items
+		 * @return false to skip the subitems
+		 */
+		boolean item(QuestionnaireItemComponent item, boolean hasSubitems, int depth);
+	}
+
+	private FhirContext context;
+
+	private List<String> ignoredElements;
+
+	public StreamingQuestionnaireReader(FhirContext context) {
+		this.context = context;
+		this.ignoredElements = new ArrayList<String>();
+	}
+
+	/**
+	 * @param in Questionnaire JSON, closed afterwards
+	 * @param handler
+	 * @throws IOException if reading fails or the JSON is no valid Questionnaire
+	 */
+	public void read(Reader in, ItemHandler handler) throws IOException {
+		try (JsonReader reader = new JsonReader(in)) {
+			JsonObject header = new JsonObject();
+			boolean started = false;
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				if (name.equals("item")) {
+					if (!started) {
+						handler.start(this.parseHeader(header));
+						started = true;
+					}
+					this.readItems(reader, handler, 0);
+				} else if (started) {
+					this.ignore("Questionnaire." + name);
+					reader.skipValue();
+				} else {
+					header.add(name, new JsonParser().parse(reader));
+				}
+			}
+			reader.endObject();
+			if (!started) {
+				handler.start(this.parseHeader(header));
+			}
+		} catch (IllegalStateException | NumberFormatException | ca.uhn.fhir.parser.DataFormatException e) {
+			// Thrown by the JsonReader for unexpected tokens and by HAPI for invalid values
+			throw new IOException("Invalid Questionnaire JSON: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @return Elements that were ignored because they followed the items, e.g. "Questionnaire.status"
+	 */
+	public List<String> getIgnoredElements() {
+		return ignoredElements;
+	}
+
+	private Questionnaire parseHeader(JsonObject header) throws IOException {
+		JsonElement resourceType = header.get("resourceType");
+		if (resourceType == null || !resourceType.isJsonPrimitive() || !resourceType.getAsString().equals("Questionnaire")) {
+			throw new IOException("Not a Questionnaire");
+		}
+		try {
+			return this.context.newJsonParser().parseResource(Questionnaire.class, header.toString());
+		} catch (ca.uhn.fhir.parser.DataFormatException e) {
+			throw new IOException("Invalid Questionnaire: " + e.getMessage(), e);
+		}
+	}
+
+	private void readItems(JsonReader reader, ItemHandler handler, int depth) throws IOException {
+		reader.beginArray();
+		while (reader.hasNext()) {
+			this.readItem(reader, handler, depth);
+		}
+		reader.endArray();
+	}
+
+	private void readItem(JsonReader reader, ItemHandler handler, int depth) throws IOException {
+		QuestionnaireItemComponent item = new QuestionnaireItemComponent();
+		boolean emitted = false;
+		JsonArray deferred = null;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (name.equals("item") && !emitted && (item.getLinkId() == null || item.getType() == null)) {
+				// The item can not be converted yet, keep the subitems until it can
+				deferred = new JsonParser().parse(reader).getAsJsonArray();
+			} else if (name.equals("item")) {
+				reader.beginArray();
+				boolean wanted = true;
+				if (!emitted && reader.hasNext()) {
+					wanted = this.emit(item, handler, true, depth);
+					emitted = true;
+				}
+				while (reader.hasNext()) {
+					if (wanted) {
+						this.readItem(reader, handler, depth + 1);
+					} else {
+						reader.skipValue();
+					}
+				}
+				reader.endArray();
+			} else if (!ITEM_ELEMENTS.contains(name)) {
+				reader.skipValue();
+			} else if (emitted) {
+				this.ignore("item(" + item.getLinkId() + ")." + name);
+				reader.skipValue();
+			} else {
+				this.readItemElement(reader, name, item);
+			}
+		}
+		reader.endObject();
+		if (deferred != null && deferred.size() > 0) {
+			if (this.emit(item, handler, true, depth)) {
+				try (JsonReader subitems = new JsonReader(new StringReader(deferred.toString()))) {
+					this.readItems(subitems, handler, depth + 1);
+				}
+			}
+		} else if (!emitted) {
+			this.emit(item, handler, false, depth);
+		}
+	}
+
+	private boolean emit(QuestionnaireItemComponent item, ItemHandler handler, boolean hasSubitems, int depth) throws IOException {
+		if (item.getLinkId() == null || item.getType() == null) {
+			throw new IOException("Item " + item.getLinkId() + " lacks linkId or type");
+		}
+		return handler.item(item, hasSubitems, depth);
+	}
+
+	private void readItemElement(JsonReader reader, String name, QuestionnaireItemComponent item) throws IOException {
+		switch (name) {
+		case "linkId":
+			item.setLinkId(reader.nextString());
+			break;
+		case "definition":
+			item.setDefinition(reader.nextString());
+			break;
+		case "prefix":
+			item.setPrefix(reader.nextString());
+			break;
+		case "text":
+			item.setText(reader.nextString());
+			break;
+		case "type":
+			String type = reader.nextString();
+			try {
+				item.setType(QuestionnaireItemType.fromCode(type));
+			} catch (FHIRException e) {
+				throw new IOException("Unknown item type " + type, e);
+			}
+			break;
+		case "required":
+			item.setRequired(reader.nextBoolean());
+			break;
+		case "repeats":
+			item.setRepeats(reader.nextBoolean());
+			break;
+		case "readOnly":
+			item.setReadOnly(reader.nextBoolean());
+			break;
+		case "maxLength":
+			item.setMaxLength(reader.nextInt());
+			break;
+		case "code":
+			reader.beginArray();
+			while (reader.hasNext()) {
+				item.addCode(readCoding(reader));
+			}
+			reader.endArray();
+			break;
+		case "options":
+			item.setOptions(readReference(reader));
+			break;
+		case "option":
+			reader.beginArray();
+			while (reader.hasNext()) {
+				item.addOption(readOption(reader));
+			}
+			reader.endArray();
+			break;
+		default:
+			reader.skipValue();
+		}
+	}
+
+	private static Coding readCoding(JsonReader reader) throws IOException {
+		Coding coding = new Coding();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			switch (reader.nextName()) {
+			case "system":
+				coding.setSystem(reader.nextString());
+				break;
+			case "version":
+				coding.setVersion(reader.nextString());
+				break;
+			case "code":
+				coding.setCode(reader.nextString());
+				break;
+			case "display":
+				coding.setDisplay(reader.nextString());
+				break;
+			case "userSelected":
+				coding.setUserSelected(reader.nextBoolean());
+				break;
+			default:
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return coding;
+	}
+
+	private static Reference readReference(JsonReader reader) throws IOException {
+		Reference reference = new Reference();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			switch (reader.nextName()) {
+			case "reference":
+				reference.setReference(reader.nextString());
+				break;
+			case "display":
+				reference.setDisplay(reader.nextString());
+				break;
+			default:
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return reference;
+	}
+
+	private static QuestionnaireItemOptionComponent readOption(JsonReader reader) throws IOException {
+		QuestionnaireItemOptionComponent option = new QuestionnaireItemOptionComponent();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (name.equals("valueCoding")) {
+				option.setValue(readCoding(reader));
+			} else if (name.equals("valueInteger")) {
+				option.setValue(new IntegerType(reader.nextInt()));
+			} else if (name.equals("valueDate")) {
+				option.setValue(new DateType(reader.nextString()));
+			} else if (name.equals("valueTime")) {
+				option.setValue(new TimeType(reader.nextString()));
+			} else if (name.equals("valueString") && reader.peek() != JsonToken.NULL) {
+				option.setValue(new StringType(reader.nextString()));
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return option;
+	}
+
+	private void ignore(String element) {
+		logger.debug("Ignoring " + element + " because it follows the items");
+		this.ignoredElements.add(element);
+	}
+
+}
@@ -98,6 +98,14 @@ public class Attribute {
 		return this.name;
 	}
 	
+	/**
+	 * Only renames the Attribute itself, use {@link Entity#moveAttribute(Attribute, String)}
+	 * @param name
+	 */
+	void setName(String name){
+		this.name = name;
+	}
+	
 	
 	public Attribute setDescription(EMXLangCode langCode, String description){
 		this.descriptions.put(langCode, description);
@@ -6,7 +6,9 @@ package emxModel;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.function.Consumer;
 
 import javax.naming.InvalidNameException;
 import javax.naming.NameAlreadyBoundException;
@@ -31,7 +33,15 @@ public class EMXPackage {
 	
 	protected ArrayList<Entity> entities;
 	
-	protected ArrayList<String> namespace;
+	/**
+	 * Names of the entities and subpackages
+	 */
+	protected HashSet<String> namespace;
+	
+	/**
+	 * Memoized by getFullName(), reset by invalidateFullName()
+	 */
+	private String fullName;
 	
 	final static Logger logger = LoggerFactory.getLogger(QuestionnaireConverter.class);
 	
@@ -45,12 +55,51 @@ public class EMXPackage {
 		this.tags = new ArrayList<Tag>();
 		this.subPackages = new ArrayList<EMXPackage>();
 		this.entities = new ArrayList<Entity>();
-		this.namespace = new ArrayList<String>();
+		this.namespace = new HashSet<String>();
 		
 	}
 
 	public Entity addEntity(String name) throws NamingException{
 		Entity entity = new Entity(name);
+		this.checkEntityName(name);
+		
+		entity.setInPackage(this);
+		//Throws exception if full name is too long
+		if(!EMX.isValidEMXName(entity.getFullName())){
+			throw new InvalidNameException("The expanded name: "+entity.getFullName()+" is no vaild EMX name");
+		}
+		this.namespace.add(name);
+		this.entities.add(entity);
+		return entity;
+	}
+	
+	/**
+	 * Moves an Entity of another package (possibly of another EMX) into this package, e.g. when merging
+	 * separately converted parts of a model.
+	 * @param entity
+	 * @param name New name of the Entity
+	 * @return the moved Entity
+	 * @throws NamingException if the name is invalid or already taken, the Entity is not moved then
+	 */
+	public Entity moveEntity(Entity entity, String name) throws NamingException{
+		if(!EMX.isValidEMXName(name)){
+			throw new InvalidNameException(name+" is no valid EMX name");
+		}
+		this.checkEntityName(name);
+		if(!EMX.isValidEMXName(this.getFullName()+"_"+name)){
+			throw new InvalidNameException("The expanded name: "+this.getFullName()+"_"+name+" is no vaild EMX name");
+		}
+		if(entity.getInPackage() != null){
+			entity.getInPackage().removeEntity(entity);
+		}
+		entity.setName(name);
+		entity.setInPackage(this);
+		this.namespace.add(name);
+		this.entities.add(entity);
+		return entity;
+	}
+	
+	private void checkEntityName(String name) throws NamingException{
 		if(this.namespace.contains(name)){
 			throw new NameAlreadyBoundException("The name "+name+" already exists in package "+this.getFullName());
 		}
@@ -65,15 +114,6 @@ public class EMXPackage {
 				logger.debug("Encountered IO Exception while trying to connect to MOLGENIS",e);
 			}
 		}
-		
-		entity.setInPackage(this);
-		//Throws exception if full name is too long
-		if(!EMX.isValidEMXName(entity.getFullName())){
-			throw new InvalidNameException("The expanded name: "+entity.getFullName()+" is no vaild EMX name");
-		}
-		this.namespace.add(name);
-		this.entities.add(entity);
-		return entity;
 	}
 	
 	
@@ -107,10 +147,26 @@ public class EMXPackage {
 	
 	
 	public String getFullName(){
-		if(this.parent == null){
-			return this.name;
+		String fullName = this.fullName;
+		if(fullName == null){
+			fullName = this.parent == null ? this.name : this.parent.getFullName()+"_"+this.name;
+			this.fullName = fullName;
+		}
+		return fullName;
+	}
+	
+	/**
+	 * Resets the memoized full names of this package, its subpackages and all their entities. Needed whenever
+	 * the name or the parent of the package changes.
+	 */
+	void invalidateFullName(){
+		this.fullName = null;
+		for(Entity entity:this.entities){
+			entity.invalidateFullName();
+		}
+		for(EMXPackage subPackage:this.subPackages){
+			subPackage.invalidateFullName();
 		}
-		return this.parent.getFullName()+"_"+this.name;
 	}
 	
 	
@@ -154,6 +210,7 @@ public class EMXPackage {
 	 */
 	void setParent(EMXPackage parent) {
 		this.parent = parent;
+		this.invalidateFullName();
 	}
 	
 	
@@ -202,13 +259,49 @@ public class EMXPackage {
 		
 		List<EMXPackage> expandedSubPackagesList = new ArrayList<EMXPackage>();
 		
-		expandedSubPackagesList.addAll(this.subPackages);
+		this.forEachSubPackage(expandedSubPackagesList::add);
 		
+		return expandedSubPackagesList;
+	}
+	
+	/**
+	 * Visits all subpackages, direct and nested ones, in the order of {@link #getExpandedSubPackagesList()}
+	 * without collecting them: first the direct subpackages, then the nested ones of each of them. Parents
+	 * are always visited before their subpackages.
+	 * @param visitor
+	 */
+	public void forEachSubPackage(Consumer<EMXPackage> visitor){
 		for(EMXPackage subPackage: this.subPackages){
-			expandedSubPackagesList.addAll(subPackage.getExpandedSubPackagesList());
+			visitor.accept(subPackage);
 		}
-		
-		return expandedSubPackagesList;
+		for(EMXPackage subPackage: this.subPackages){
+			subPackage.forEachSubPackage(visitor);
+		}
+	}
+	
+	/**
+	 * Visits this package and all its subpackages, see {@link #forEachSubPackage(Consumer)}
+	 * @param visitor
+	 */
+	public void forEachPackage(Consumer<EMXPackage> visitor){
+		visitor.accept(this);
+		this.forEachSubPackage(visitor);
+	}
+	
+	/**
+	 * Visits the entities of this package and all its subpackages, package by package in the order of
+	 * {@link #forEachPackage(Consumer)}
+	 * @param visitor
+	 */
+	public void forEachEntity(Consumer<Entity> visitor){
+		for(Entity entity: this.entities){
+			visitor.accept(entity);
+		}
+		this.forEachSubPackage(subPackage -> {
+			for(Entity entity: subPackage.entities){
+				visitor.accept(entity);
+			}
+		});
 	}
 	
 	server.MOLGENISServerConnector getServerNameChecker(){
@@ -0,0 +1,305 @@
+/*******************************************************************************
+ * Copyright (c) 2017 - IT Center for Clinical Research, University of Luebeck
+ * Noemi Deppenwiese, Hannes Ulrich
+ ******************************************************************************/
+package emxModel;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Serializes the tables of an EMX model row by row into a Writer, so no table has to be built as a whole.
+ * Tables can be written into a zip file on any OutputStream (file, HTTP request or response) with
+ * {@link #writeZip(OutputStream)}. The rows are the same as those of {@link EMX#getTables(boolean)}, which
+ * uses this writer as well. The model must not change while it is written.
+ */
+public class EMXTableWriter {
+
+	private final static String delimiter = "\t";
+
+	private final static String newline = "\n";
+
+	private EMX emx;
+
+	private boolean withTags;
+
+	private List<EMXPackage> packages;
+
+	private List<Entity> entities;
+
+	/**
+	 * Entities by full name
+	 */
+	private Map<String, Entity> entitiesByName;
+
+	public EMXTableWriter(EMX emx, boolean withTags) {
+		this.emx = emx;
+		this.withTags = withTags;
+		this.packages = new ArrayList<EMXPackage>();
+		emx.forEachPackage(this.packages::add);
+		this.entities = new ArrayList<Entity>();
+		this.entitiesByName = new HashMap<String, Entity>();
+		emx.forEachEntity(entity -> {
+			this.entities.add(entity);
+			this.entitiesByName.put(entity.getFullName(), entity);
+		});
+	}
+
+	/**
+	 * @return Names of all tables, the entity tables are named after the full names of their entities. Entities
+	 * without attributes have no table.
+	 */
+	public List<String> getTableNames() {
+		List<String> names = new ArrayList<String>();
+		if (this.withTags) {
+			names.add("tags");
+		}
+		names.add("packages");
+		names.add("entities");
+		names.add("attributes");
+		for (Entity entity : this.entities) {
+			if (!entity.getAttributes().isEmpty()) {
+				names.add(entity.getFullName());
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Writes every table as a .tsv entry of a zip file. The stream is not closed.
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeZip(OutputStream out) throws IOException {
+		ZipOutputStream zip = new ZipOutputStream(out);
+		Writer writer = new BufferedWriter(new OutputStreamWriter(zip, StandardCharsets.UTF_8));
+		for (String name : this.getTableNames()) {
+			zip.putNextEntry(new ZipEntry(name + ".tsv"));
+			this.writeTable(name, writer);
+			writer.flush();
+			zip.closeEntry();
+		}
+		zip.finish();
+	}
+
+	/**
+	 * Writes already generated tables as .tsv entries of a zip file, like {@link #writeZip(OutputStream)}
+	 * @param tables
+	 * @param out not closed
+	 * @throws IOException
+	 */
+	public static void writeZip(Map<String, String> tables, OutputStream out) throws IOException {
+		ZipOutputStream zip = new ZipOutputStream(out);
+		Writer writer = new BufferedWriter(new OutputStreamWriter(zip, StandardCharsets.UTF_8));
+		for (Map.Entry<String, String> table : tables.entrySet()) {
+			zip.putNextEntry(new ZipEntry(table.getKey() + ".tsv"));
+			writer.write(table.getValue());
+			writer.flush();
+			zip.closeEntry();
+		}
+		zip.finish();
+	}
+
+	/**
+	 * @param name see {@link #getTableNames()}
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeTable(String name, Writer out) throws IOException {
+		switch (name) {
+		case "tags":
+			this.writeTags(out);
+			break;
+		case "packages":
+			this.writePackages(out);
+			break;
+		case "entities":
+			this.writeEntities(out);
+			break;
+		case "attributes":
+			this.writeAttributes(out);
+			break;
+		default:
+			Entity entity = this.entitiesByName.get(name);
+			if (entity == null) {
+				throw new IllegalArgumentException("No table " + name);
+			}
+			this.writeInstances(entity, out);
+		}
+	}
+
+	private void writeTags(Writer out) throws IOException {
+		// Web interface says everything but codeSystem and ObjectIRI is mandatory but doku says only identifier
+		// and name are... Write header containing ALL columns
+		out.write("identifier" + delimiter + "label" + delimiter + "objectIRI" + delimiter + "relationLabel"
+				+ delimiter + "codeSystem" + delimiter + "relationIRI");
+		for (Tag tag : this.emx.getTagNamespace().values()) {
+			out.write(newline + tag.getIdentifier() + delimiter + tag.getLabel() + delimiter
+					+ tag.getObjectIRIAsString() + delimiter + tag.getRelationLabel() + delimiter
+					+ tag.getCodeSystem() + delimiter + tag.getRelationIRIAsString());
+		}
+	}
+
+	private void writePackages(Writer out) throws IOException {
+		out.write("name" + delimiter + "description" + delimiter + "parent");
+		if (this.withTags) {
+			out.write(delimiter + "tags");
+		}
+		for (EMXPackage currPackage : this.packages) {
+			String parentName = "";
+			if (!(currPackage.getParent() == null)) {
+				parentName = currPackage.getParent().getFullName();
+			}
+			out.write(newline + currPackage.getFullName() + delimiter + currPackage.getDescription() + delimiter
+					+ parentName + delimiter);
+			if (this.withTags) {
+				writeTagList(currPackage.getTags(), out);
+			}
+		}
+	}
+
+	private void writeEntities(Writer out) throws IOException {
+		out.write("name" + delimiter + "extends" + delimiter + "package" + delimiter + "abstract" + delimiter
+				+ "description");
+		// Add fields for all language descriptions
+		for (EMXLangCode code : EMXLangCode.values()) {
+			out.write(delimiter + "description-" + code.toString());
+		}
+		if (this.withTags) {
+			out.write(delimiter + "tags");
+		}
+		for (Entity entity : this.entities) {
+			String extendsEntityName = "";
+			if (!(entity.getExtendsEntity() == null)) {
+				extendsEntityName = entity.getExtendsEntity().getFullName();
+			}
+			out.write(newline + entity.getName() + delimiter + extendsEntityName + delimiter
+					+ entity.getInPackage().getFullName() + delimiter
+					+ Boolean.toString(entity.isAbstract()).toUpperCase() + delimiter + entity.getDescription());
+			// Add all language descriptions
+			for (EMXLangCode code : EMXLangCode.values()) {
+				out.write(delimiter + entity.getDescription(code));
+			}
+			if (this.withTags) {
+				// Without tags the delimiter is left out as well
+				if (!entity.getTags().isEmpty()) {
+					out.write(delimiter);
+					writeTagList(entity.getTags(), out);
+				}
+			}
+		}
+	}
+
+	private void writeAttributes(Writer out) throws IOException {
+		out.write("name" + delimiter + "entity" + delimiter + "dataType" + delimiter + "refEntity" + delimiter
+				+ "nillable" + delimiter + "idAttribute" + delimiter + "description");
+		// Add fields for all language descriptions
+		for (EMXLangCode code : EMXLangCode.values()) {
+			out.write(delimiter + "description-" + code.toString());
+		}
+		out.write(delimiter + "rangeMin" + delimiter + "rangeMax" + delimiter + "lookupAttribute" + delimiter + "label");
+		// Add fields for all language labels
+		for (EMXLangCode code : EMXLangCode.values()) {
+			out.write(delimiter + "label-" + code.toString());
+		}
+		out.write(delimiter + "aggregateable" + delimiter + "labelAttribute" + delimiter + "readOnly");
+		if (this.withTags) {
+			out.write(delimiter + "tags");
+		}
+		out.write(delimiter + "validationExpression" + delimiter + "defaultValue" + delimiter + "partOfAttribute"
+				+ delimiter + "expression" + delimiter + "enumOptions");
+
+		// Add line for each attribute
+		for (Entity entity : this.entities) {
+			for (Attribute attr : entity.getAttributes()) {
+				this.writeAttribute(attr, out);
+			}
+		}
+	}
+
+	private void writeAttribute(Attribute attr, Writer out) throws IOException {
+		String refEntityName = "";
+		if (!(attr.getRefEntity() == null)) {
+			refEntityName = attr.getRefEntity().getFullName();
+		}
+		out.write(newline + attr.getName() + delimiter + attr.getEntity().getFullName() + delimiter
+				+ attr.getDataType().toString() + delimiter + refEntityName + delimiter
+				+ Boolean.toString(attr.isNillable()).toUpperCase() + delimiter + attr.getIsIdAttribute().toString()
+				+ delimiter + attr.getDescription());
+		// Add fields for all language descriptions
+		for (EMXLangCode code : EMXLangCode.values()) {
+			out.write(delimiter + attr.getDescription(code));
+		}
+		out.write(delimiter + attr.getRangeMinAsString() + delimiter + attr.getRangeMaxAsString() + delimiter
+				+ Boolean.toString(attr.isLookupAttribute()).toUpperCase() + delimiter + attr.getLabel());
+		// Add fields for all language labels
+		for (EMXLangCode code : EMXLangCode.values()) {
+			out.write(delimiter + attr.getLabel(code));
+		}
+		out.write(delimiter + Boolean.toString(attr.isAggregateable()).toUpperCase() + delimiter
+				+ Boolean.toString(attr.isLabelAttribute()).toUpperCase() + delimiter
+				+ Boolean.toString(attr.isReadOnly()).toUpperCase());
+		if (this.withTags) {
+			// Without tags the delimiter is left out as well
+			if (!attr.getTags().isEmpty()) {
+				out.write(delimiter);
+				writeTagList(attr.getTags(), out);
+			}
+		}
+		String partOfName = "";
+		if (!(attr.getPartOfAttribute() == null)) {
+			partOfName = attr.getPartOfAttribute().getName();
+		}
+		out.write(delimiter + attr.getValidationExpression() + delimiter + attr.getDefaultValue() + delimiter
+				+ partOfName + delimiter + attr.getExpression() + delimiter + attr.getEnumOptionsAsCSV());
+	}
+
+	private void writeInstances(Entity entity, Writer out) throws IOException {
+		List<Attribute> attributes = entity.getAttributes();
+		InstanceColumn[] columns = new InstanceColumn[attributes.size()];
+		// Write header row
+		for (int i = 0; i < attributes.size(); i++) {
+			if (i > 0) {
+				out.write(delimiter);
+			}
+			out.write(attributes.get(i).getName());
+			columns[i] = entity.getColumn(attributes.get(i));
+		}
+		// Add Instance Rows, missing values are left empty
+		int rows = entity.getInstances().size();
+		for (int row = 0; row < rows; row++) {
+			out.write(newline);
+			for (int i = 0; i < columns.length; i++) {
+				if (i > 0) {
+					out.write(delimiter);
+				}
+				if (columns[i] != null && columns[i].has(row)) {
+					out.write(String.valueOf(columns[i].get(row)));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the identifiers of the tags comma separated
+	 */
+	private static void writeTagList(List<Tag> tags, Writer out) throws IOException {
+		for (int i = 0; i < tags.size(); i++) {
+			if (i > 0) {
+				out.write(",");
+			}
+			out.write(tags.get(i).getIdentifier());
+		}
+	}
+
+}
@@ -4,13 +4,19 @@
  ******************************************************************************/
 package emxModel;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.zip.DataFormatException;
 
 import javax.naming.InvalidNameException;
 import javax.naming.NameAlreadyBoundException;
 import javax.naming.NamingException;
+import javax.naming.directory.InvalidAttributeValueException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,14 +37,34 @@ public class Entity {
 	
 	private HashMap<EMXLangCode,String> descriptions;
 	
+	/**
+	 * Memoized by getFullName(), reset by invalidateFullName()
+	 */
+	private String fullName;
+	
 	private ArrayList<Tag> tags;
 	
+	/**
+	 * Attributes by name
+	 */
 	private Map<String,Attribute> attributes;
 	
-	private ArrayList<String> instanceNamespace;
+	/**
+	 * Attributes in the order they were added, this is the column order of the generated tables
+	 */
+	private ArrayList<Attribute> attributeList;
+	
+	private List<Attribute> attributeView;
+	
+	private HashSet<String> instanceNamespace;
 	
 	private ArrayList<Instance> instances;
 	
+	/**
+	 * Values of the instances, one column per attribute
+	 */
+	private Map<Attribute,InstanceColumn> columns;
+	
 	final static Logger logger = LoggerFactory.getLogger(QuestionnaireConverter.class);
 	
 	Entity(String name) throws InvalidNameException{
@@ -49,9 +75,12 @@ public class Entity {
 		this.name = name;
 		this.descriptions = new HashMap<EMXLangCode,String>();
 		this.tags = new ArrayList<Tag>();
-		this.attributes = new ConcurrentHashMap<String,Attribute>();
+		this.attributes = new HashMap<String,Attribute>();
+		this.attributeList = new ArrayList<Attribute>();
+		this.attributeView = Collections.unmodifiableList(this.attributeList);
 		this.instances = new ArrayList<Instance>();
-		this.instanceNamespace = new ArrayList<String>();
+		this.columns = new HashMap<Attribute,InstanceColumn>();
+		this.instanceNamespace = new HashSet<String>();
 		
 	}
 
@@ -64,11 +93,60 @@ public class Entity {
 		Attribute a = new Attribute(this,name);
 		a.setEntity(this);
 		this.attributes.put(name,a);
+		this.attributeList.add(a);
 		
 		return a;
 	}
 	
 	
+	/**
+	 * Moves an Attribute of another Entity into this one, e.g. when merging separately converted parts of a model.
+	 * @param attr
+	 * @param name New name of the Attribute
+	 * @return the moved Attribute
+	 * @throws NamingException if the name is invalid or already taken, the Attribute is not moved then
+	 */
+	public Attribute moveAttribute(Attribute attr, String name) throws NamingException{
+		
+		if(!EMX.isValidEMXName(name)){
+			throw new InvalidNameException(name+" is no valid EMX name");
+		}
+		if(this.attributes.keySet().contains(name)){
+			throw new NameAlreadyBoundException(name +" already exists in entity "+this.getFullName());
+		}
+		if(attr.getEntity() != null){
+			attr.getEntity().removeAttribute(attr);
+		}
+		attr.setName(name);
+		attr.setEntity(this);
+		this.attributes.put(name,attr);
+		this.attributeList.add(attr);
+		
+		return attr;
+	}
+	
+	
+	public Attribute removeAttribute(Attribute attr){
+		if(this.attributes.remove(attr.getName(), attr)){
+			this.attributeList.remove(attr);
+		}
+		return attr;
+	}
+	
+	
+	/**
+	 * Moves an Attribute of this entity behind all others, e.g. to keep the column order of the items when a
+	 * model is updated
+	 * @param attr
+	 */
+	public void moveAttributeToEnd(Attribute attr){
+		if(this.hasAttribute(attr)){
+			this.attributeList.remove(attr);
+			this.attributeList.add(attr);
+		}
+	}
+	
+	
 	public Tag addTag(Tag tag){
 		this.tags.add(tag);
 		return tag;
@@ -139,12 +217,25 @@ public class Entity {
 	
 	
 	public String getFullName(){
-		return this.inPackage.getFullName()+"_"+this.name;
+		String fullName = this.fullName;
+		if(fullName == null){
+			fullName = this.inPackage.getFullName()+"_"+this.name;
+			this.fullName = fullName;
+		}
+		return fullName;
+	}
+	
+	/**
+	 * Resets the memoized full name, see {@link EMXPackage#invalidateFullName()}
+	 */
+	void invalidateFullName(){
+		this.fullName = null;
 	}
 
 	
 	public void setName(String name) {
 		this.name = name;
+		this.invalidateFullName();
 	}
 
 	
@@ -165,6 +256,7 @@ public class Entity {
 	
 	public void setInPackage(EMXPackage inPackage) {
 		this.inPackage = inPackage;
+		this.invalidateFullName();
 	}
 
 	
@@ -184,50 +276,160 @@ public class Entity {
 
 
 	/**
-	 * @return the instances
+	 * @return read-only view of the instances, add rows with
+	 *         {@link #addInstance()} or {@link #addInstances}
 	 */
-	public ArrayList<Instance> getInstances() {
-		return instances;
+	public List<Instance> getInstances() {
+		return Collections.unmodifiableList(instances);
 	}
 
 
 	/**
-	 * @return the attributes
+	 * @return the attributes in the order they were added, a read-only view that reflects later changes
 	 */
-	public ArrayList<Attribute> getAttributes() {
-		ArrayList<Attribute> attr = new ArrayList<Attribute>();
-		attr.addAll(attributes.values());
-		return attr;
+	public List<Attribute> getAttributes() {
+		return this.attributeView;
+	}
+	
+	/**
+	 * @param position
+	 * @return the attribute at the position, see {@link #getAttributes()}
+	 */
+	public Attribute getAttribute(int position) {
+		return this.attributeList.get(position);
 	}
 	
 	public Instance addInstance(){
-		Instance instance = new Instance(this);
+		return new Instance(this);
+	}
+	
+	/**
+	 * @param instance
+	 * @return the row of the appended instance
+	 */
+	int appendInstance(Instance instance){
 		this.instances.add(instance);
-		return instance;
+		return this.instances.size() - 1;
+	}
+	
+	/**
+	 * @param row
+	 * @param attr
+	 * @return the value of the attribute for the instance in the given row, null if there is none
+	 */
+	String getValue(int row, Attribute attr){
+		InstanceColumn column = this.columns.get(attr);
+		return column == null ? null : column.get(row);
+	}
+	
+	boolean hasValue(int row, Attribute attr){
+		InstanceColumn column = this.columns.get(attr);
+		return column != null && column.has(row);
+	}
+	
+	void setValue(int row, Attribute attr, String value){
+		InstanceColumn column = this.columns.get(attr);
+		if(column == null){
+			column = new InstanceColumn();
+			this.columns.put(attr, column);
+		}
+		column.set(row, value);
+	}
+	
+	void removeValue(int row, Attribute attr){
+		InstanceColumn column = this.columns.get(attr);
+		if(column != null){
+			column.remove(row);
+		}
+	}
+	
+	/**
+	 * @param attr
+	 * @return the values of the attribute, null if no instance has one
+	 */
+	InstanceColumn getColumn(Attribute attr){
+		return this.columns.get(attr);
+	}
+	
+	/**
+	 * @return all attributes values were set for, including ones removed from the entity since
+	 */
+	List<Attribute> getColumnAttributes(){
+		return new ArrayList<Attribute>(this.columns.keySet());
+	}
+
+
+	/**
+	 * Appends one instance per row, like {@link #addInstance()} followed by {@link Instance#addValue(Attribute, String)}
+	 * for every value of the row, but the attributes are checked only once. A row stops at its first invalid value,
+	 * like a series of addValue calls would, and is reported to the error handler.
+	 * @param attributes Attributes the values of each row are for, the same attribute may appear more than once
+	 * @param rows Values by position of their attribute
+	 * @param onError Called with the row and the exception for rows with an invalid value
+	 * @return the added instances
+	 * @throws AttributeNonExistentException if an attribute is null or not part of this entity, nothing is added then
+	 * @throws InvalidAttributeValueException if an attribute is an AUTO id attribute, nothing is added then
+	 */
+	public List<Instance> addInstances(Attribute[] attributes, List<String[]> rows,
+			BiConsumer<String[], Exception> onError) throws AttributeNonExistentException, InvalidAttributeValueException {
+		for (Attribute attr : attributes) {
+			if (attr == null) {
+				throw new AttributeNonExistentException("Attribute must not be null");
+			}
+			if (attr.getIsIdAttribute().equals(IdAttributeOpts.AUTO)) {
+				throw new InvalidAttributeValueException("Values for AUTO idAttributes are not permitted!");
+			}
+			if (!this.hasAttribute(attr)) {
+				throw new AttributeNonExistentException(this.getFullName() + " does not have attribute "
+						+ attr.getName() + "(" + attr.getLabel() + ")");
+			}
+		}
+		List<Instance> added = new ArrayList<Instance>(rows.size());
+		this.instances.ensureCapacity(this.instances.size() + rows.size());
+		for (String[] row : rows) {
+			Instance instance = this.addInstance();
+			added.add(instance);
+			for (int i = 0; i < attributes.length; i++) {
+				Attribute attr = attributes[i];
+				if (!Attribute.testDataTypeConformance(attr.getDataType(), row[i])) {
+					onError.accept(row, new DataFormatException(row[i] + " is not of DataType " + attr.getDataType().toString()));
+					break;
+				}
+				if (attr.getIsIdAttribute().equals(IdAttributeOpts.TRUE) && !this.instanceNamespace.add(row[i])) {
+					onError.accept(row, new NameAlreadyBoundException(" id Attribute values must be unique but value "
+							+ row[i] + " already exists for entity " + this.getFullName()));
+					break;
+				}
+				this.setValue(instance.getRow(), attr, row[i]);
+			}
+		}
+		return added;
 	}
 
 
 	/**
 	 * @return the instanceNamespace
 	 */
-	public ArrayList<String> getInstanceNamespace() {
+	public Set<String> getInstanceNamespace() {
 		return instanceNamespace;
 	}
 	
+	/**
+	 * @param attr
+	 * @return true if the attribute is part of this entity
+	 */
+	public boolean hasAttribute(Attribute attr){
+		return attr != null && this.attributes.get(attr.getName()) == attr;
+	}
+	
 	public Attribute getAttributeByName(String name){
 		
-		for(Attribute attr:this.getAttributes()){
-			if(attr.getName().equals(name)){
-				return attr;
-			}
-		}
-		
-		return null;
+		return this.attributes.get(name);
 		
 	}
 	
 	public void setIdAttributte(Attribute attr,IdAttributeOpts value){
-		if(!this.attributes.values().contains(attr)){
+		if(!this.hasAttribute(attr)){
 			logger.debug("Trying to make "+attr+" idAttribute but this attribute does not exist for this entity");
 		}else{
 			//test if there is something to be changed
@@ -256,7 +458,7 @@ public class Entity {
 		}else{
 			this.inPackage.namespace.remove(this.name);
 			this.inPackage.namespace.add(value);
-			this.name = value;
+			this.setName(value);
 			return true;
 		}
 		
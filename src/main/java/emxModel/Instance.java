@@ -10,15 +10,22 @@ import java.util.zip.DataFormatException;
 import javax.naming.NameAlreadyBoundException;
 import javax.naming.directory.InvalidAttributeValueException;
 
+/**
+ * A row of an entity. The values are stored by the entity, one column per attribute.
+ */
 public class Instance {
 	
 	private Entity entity;
 	
-	private HashMap<Attribute,String> values;
+	private int row;
 	
+	/**
+	 * Appends a new row to the entity, the same as {@link Entity#addInstance()}
+	 * @param entity
+	 */
 	public Instance(Entity entity){
 		this.entity = entity;
-		this.values = new HashMap<Attribute,String>();
+		this.row = entity.appendInstance(this);
 	}
 
 
@@ -36,19 +43,16 @@ public class Instance {
 			throw new InvalidAttributeValueException("Values for AUTO idAttributes are not permitted!");
 		}
 		//Test if entity contains this attribute
-		if (entity.getAttributes().contains(attr)) {
-			//If this is id Attribute, check for value uniqueness
+		if (entity.hasAttribute(attr)) {
+			//If this is id Attribute, check for value uniqueness and add it to the namespace
 			if (attr.getIsIdAttribute().equals(IdAttributeOpts.TRUE)) {
-				if (this.entity.getInstanceNamespace().contains(value)) {
+				if (!this.entity.getInstanceNamespace().add(value)) {
 					throw new NameAlreadyBoundException(" id Attribute values must be unique but value " + value
 							+ " already exists for entity " + this.entity.getFullName());
-				} else {
-					//Add this Id Attribute vale to namespace
-					this.entity.getInstanceNamespace().add(value);
 				}
 			}
 			//Add value to instance
-			this.values.put(attr, value);
+			this.entity.setValue(this.row, attr, value);
 		} else {
 			throw new AttributeNonExistentException(this.entity.getFullName() + " does not have attribute "
 					+ attr.getName() + "(" + attr.getLabel() + ")");
@@ -56,30 +60,41 @@ public class Instance {
 	}
 	
 	public void removeValue(Attribute attr){
-			this.values.remove(attr);
+			this.entity.removeValue(this.row, attr);
 	}
 
 	public String getValue(Attribute attr){
 		
-		return this.values.get(attr);
+		return this.entity.getValue(this.row, attr);
 		
 	}
 	
+	/**
+	 * @return position of the instance in its entity
+	 */
+	public int getRow(){
+		return this.row;
+	}
+	
 	public HashMap<Attribute,String> removeInvalidAttributes(){
 		HashMap<Attribute,String> invalidValues = new HashMap<Attribute,String>();
-		for(Attribute attr:this.values.keySet()){
-			if(!this.entity.getAttributes().contains(attr)){
-				invalidValues.put(attr, this.values.get(attr));
-				this.values.keySet().remove(attr);
+		for(Attribute attr:this.entity.getColumnAttributes()){
+			if(!this.entity.hasAttribute(attr) && this.entity.hasValue(this.row, attr)){
+				invalidValues.put(attr, this.entity.getValue(this.row, attr));
+				this.entity.removeValue(this.row, attr);
 			}
 		}
 		return invalidValues;
 	}
 	
+	/**
+	 * Sets all attributes without value to "". Not needed for writing the tables, missing values are written
+	 * empty anyway.
+	 */
 	public void fillAllAttributes(){
 		for(Attribute attr:this.entity.getAttributes()){
-			if(!this.values.containsKey(attr)){
-				this.values.put(attr, "");
+			if(!this.entity.hasValue(this.row, attr)){
+				this.entity.setValue(this.row, attr, "");
 			}
 		}
 	}
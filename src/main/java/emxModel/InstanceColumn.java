@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * Copyright (c) 2017 - IT Center for Clinical Research, University of Luebeck
+ * Noemi Deppenwiese, Hannes Ulrich
+ ******************************************************************************/
+package emxModel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The values of one attribute for all instances of an entity, by row. Values are dictionary encoded while they
+ * repeat (like system, version or flags of a code list). Once most values are distinct (like codes or displays)
+ * the column switches to a plain array. A bitmap marks the rows that have a value, the value itself may be null.
+ */
+class InstanceColumn {
+
+	private final static int INITIAL_CAPACITY = 16;
+
+	/**
+	 * Columns stay dictionary encoded until the dictionary holds more than this many values
+	 */
+	private final static int MIN_DICTIONARY_SIZE = 64;
+
+	private BitSet present;
+
+	private int count;
+
+	/**
+	 * Dictionary index by row, null once the column is plain
+	 */
+	private int[] codes;
+
+	private List<String> dictionary;
+
+	private Map<String, Integer> dictionaryIndex;
+
+	/**
+	 * Values by row, null while the column is dictionary encoded
+	 */
+	private String[] values;
+
+	InstanceColumn() {
+		this.present = new BitSet();
+		this.codes = new int[INITIAL_CAPACITY];
+		this.dictionary = new ArrayList<String>();
+		this.dictionaryIndex = new HashMap<String, Integer>();
+	}
+
+	/**
+	 * @param row
+	 * @return true if a value (possibly null) was set for the row
+	 */
+	boolean has(int row) {
+		return this.present.get(row);
+	}
+
+	/**
+	 * @param row
+	 * @return the value of the row, null if there is none
+	 */
+	String get(int row) {
+		if (!this.present.get(row)) {
+			return null;
+		}
+		if (this.values != null) {
+			return this.values[row];
+		}
+		return this.dictionary.get(this.codes[row]);
+	}
+
+	void set(int row, String value) {
+		if (this.values == null) {
+			Integer code = this.dictionaryIndex.get(value);
+			if (code == null && this.dictionary.size() >= MIN_DICTIONARY_SIZE && this.dictionary.size() * 2 > this.count) {
+				// Mostly distinct values, the dictionary only costs memory
+				this.toPlain();
+			} else {
+				if (code == null) {
+					code = this.dictionary.size();
+					this.dictionary.add(value);
+					this.dictionaryIndex.put(value, code);
+				}
+				if (row >= this.codes.length) {
+					this.codes = Arrays.copyOf(this.codes, Math.max(row + 1, this.codes.length * 2));
+				}
+				this.codes[row] = code;
+			}
+		}
+		if (this.values != null) {
+			if (row >= this.values.length) {
+				this.values = Arrays.copyOf(this.values, Math.max(row + 1, this.values.length * 2));
+			}
+			this.values[row] = value;
+		}
+		if (!this.present.get(row)) {
+			this.present.set(row);
+			this.count++;
+		}
+	}
+
+	void remove(int row) {
+		if (this.present.get(row)) {
+			this.present.clear(row);
+			this.count--;
+			if (this.values != null) {
+				this.values[row] = null;
+			}
+		}
+	}
+
+	private void toPlain() {
+		String[] plain = new String[Math.max(this.codes.length, INITIAL_CAPACITY)];
+		for (int row = this.present.nextSetBit(0); row >= 0; row = this.present.nextSetBit(row + 1)) {
+			plain[row] = this.dictionary.get(this.codes[row]);
+		}
+		this.values = plain;
+		this.codes = null;
+		this.dictionary = null;
+		this.dictionaryIndex = null;
+	}
+
+}
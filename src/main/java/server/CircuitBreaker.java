@@ -0,0 +1,142 @@
+/*******************************************************************************
+ * Copyright (c) 2017 - IT Center for Clinical Research, University of Luebeck
+ * Noemi Deppenwiese, Hannes Ulrich
+ ******************************************************************************/
+package server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Circuit breaker for the requests to one FHIR server. After a number of consecutive failed or slow calls it
+ * opens and rejects all requests for a while, so conversions fall back immediately instead of waiting for
+ * timeouts. Afterwards a single trial request is let through, its outcome closes or reopens the breaker.
+ */
+public class CircuitBreaker {
+
+	final static Logger logger = LoggerFactory.getLogger(CircuitBreaker.class);
+
+	public final static int DEFAULT_FAILURE_THRESHOLD = 5;
+
+	public final static int DEFAULT_OPEN_SECONDS = 30;
+
+	public final static int DEFAULT_SLOW_CALL_MILLIS = 10000;
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final String server;
+
+	private final int failureThreshold;
+
+	private final long openMillis;
+
+	private final long slowCallMillis;
+
+	private State state = State.CLOSED;
+
+	private int consecutiveFailures;
+
+	private long openedAt;
+
+	private boolean trialRunning;
+
+	private long calls;
+
+	private long failures;
+
+	private long rejected;
+
+	/**
+	 * @param server Only used for logging
+	 * @param failureThreshold Consecutive failed or slow calls that open the breaker, values < 1 disable it
+	 * @param openSeconds How long requests are rejected before a trial request is let through
+	 * @param slowCallMillis Calls taking longer than this count as failed
+	 */
+	public CircuitBreaker(String server, int failureThreshold, int openSeconds, int slowCallMillis) {
+		this.server = server;
+		this.failureThreshold = failureThreshold;
+		this.openMillis = openSeconds * 1000L;
+		this.slowCallMillis = slowCallMillis;
+	}
+
+	/**
+	 * @return true if a request may be sent now, false if the breaker is open
+	 */
+	public synchronized boolean allowRequest() {
+		switch (this.state) {
+		case OPEN:
+			if (System.currentTimeMillis() - this.openedAt < this.openMillis) {
+				this.rejected++;
+				return false;
+			}
+			this.state = State.HALF_OPEN;
+			this.trialRunning = true;
+			return true;
+		case HALF_OPEN:
+			if (this.trialRunning) {
+				this.rejected++;
+				return false;
+			}
+			this.trialRunning = true;
+			return true;
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * Records the outcome of a request allowed by {@link #allowRequest()}
+	 * @param failed true if the server could not be reached or answered with a server error
+	 * @param millis Duration of the request
+	 */
+	public synchronized void record(boolean failed, long millis) {
+		this.calls++;
+		if (failed || millis > this.slowCallMillis) {
+			this.failures++;
+			this.consecutiveFailures++;
+			if (this.failureThreshold > 0
+					&& (this.state == State.HALF_OPEN || this.consecutiveFailures >= this.failureThreshold)) {
+				if (this.state != State.OPEN) {
+					logger.warn("Opening circuit breaker for " + this.server + " after " + this.consecutiveFailures
+							+ " failed or slow calls");
+				}
+				this.state = State.OPEN;
+				this.openedAt = System.currentTimeMillis();
+				this.trialRunning = false;
+			}
+		} else {
+			if (this.state != State.CLOSED) {
+				logger.info("Closing circuit breaker for " + this.server);
+			}
+			this.state = State.CLOSED;
+			this.consecutiveFailures = 0;
+			this.trialRunning = false;
+		}
+	}
+
+	public synchronized State getState() {
+		return this.state;
+	}
+
+	public synchronized int getConsecutiveFailures() {
+		return this.consecutiveFailures;
+	}
+
+	public synchronized long getCalls() {
+		return this.calls;
+	}
+
+	public synchronized long getFailures() {
+		return this.failures;
+	}
+
+	/**
+	 * @return number of requests rejected while the breaker was open
+	 */
+	public synchronized long getRejected() {
+		return this.rejected;
+	}
+
+}
@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright (c) 2017 - IT Center for Clinical Research, University of Luebeck
+ * Noemi Deppenwiese, Hannes Ulrich
+ ******************************************************************************/
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import JsonModels.CacheStatistics;
+import ca.uhn.fhir.context.FhirContext;
+import converter.ConversionOutcome;
+
+/**
+ * Keeps finished conversions together with the zip file of their tables, so converting the same input again
+ * returns the earlier outcome without running the converter. The tables themselves are not kept in memory.
+ * Entries are keyed by a hash of the Questionnaire JSON (without its meta data), the conversion options and the
+ * versions of all dependencies, see {@link #key(FhirContext, Questionnaire, boolean, Map)}. Outcomes are shared
+ * and must not be modified. Only conversions without MOLGENIS name checking can be cached, their names depend
+ * on the state of the server.
+ */
+public class ConversionResultCache {
+
+	final static Logger logger = LoggerFactory.getLogger(ConversionResultCache.class);
+
+	public final static int DEFAULT_MAX_ENTRIES = 100;
+
+	public final static int DEFAULT_TTL_SECONDS = 3600;
+
+	private static ConversionResultCache instance;
+
+	private ExpiringLRUCache<String, ConversionOutcome> outcomes;
+
+	private ConversionResultCache(int maxEntries, int ttlSeconds) {
+		this.outcomes = new ExpiringLRUCache<String, ConversionOutcome>(maxEntries, ttlSeconds);
+	}
+
+	/**
+	 * (Re)creates the cache with the given limits. Cached entries are discarded.
+	 * @param maxEntries 0 disables the cache
+	 * @param ttlSeconds
+	 * @return the new cache
+	 */
+	public static synchronized ConversionResultCache configure(int maxEntries, int ttlSeconds) {
+		logger.debug("Configuring conversion result cache (maxEntries " + maxEntries + ", ttl " + ttlSeconds + "s)");
+		instance = new ConversionResultCache(maxEntries, ttlSeconds);
+		return instance;
+	}
+
+	public static synchronized ConversionResultCache getInstance() {
+		if (instance == null) {
+			instance = new ConversionResultCache(DEFAULT_MAX_ENTRIES, DEFAULT_TTL_SECONDS);
+		}
+		return instance;
+	}
+
+	/**
+	 * @param key see {@link #key(FhirContext, Questionnaire, boolean, Map)}, may be null
+	 * @return the cached outcome or null
+	 */
+	public ConversionOutcome get(String key) {
+		if (key == null) {
+			return null;
+		}
+		return this.outcomes.get(key);
+	}
+
+	/**
+	 * @param key may be null, nothing is cached then
+	 * @param outcome Should already refer to its zip file, see {@link ConversionOutcome#getArchiveFile()}
+	 */
+	public void put(String key, ConversionOutcome outcome) {
+		if (key == null || outcome == null) {
+			return;
+		}
+		this.outcomes.put(key, outcome);
+	}
+
+	public CacheStatistics getStatistics() {
+		return this.outcomes.getStatistics();
+	}
+
+	/**
+	 * Must be computed before the conversion, which changes the Questionnaire
+	 * @param context
+	 * @param questionnaire
+	 * @param withTags
+	 * @param dependencyVersions see {@link converter.DependencyPrefetcher#getVersions()}, may be null
+	 * @return SHA-256 of all inputs of the conversion as hex string, null if the dependency versions are unknown
+	 */
+	public static String key(FhirContext context, Questionnaire questionnaire, boolean withTags,
+			Map<String, String> dependencyVersions) {
+		if (questionnaire == null || dependencyVersions == null) {
+			return null;
+		}
+		// Version id and last update do not change the result
+		Questionnaire canonical = questionnaire.copy();
+		canonical.setMeta(null);
+		StringBuilder content = new StringBuilder(context.newJsonParser().encodeResourceToString(canonical));
+		content.append("\n").append(withTags);
+		for (Map.Entry<String, String> version : dependencyVersions.entrySet()) {
+			content.append("\n").append(version.getKey()).append(" ").append(version.getValue());
+		}
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(content.toString().getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder();
+			for (byte b : hash) {
+				hex.append(String.format("%02x", b));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform supports SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
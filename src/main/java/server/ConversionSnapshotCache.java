@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * Copyright (c) 2017 - IT Center for Clinical Research, University of Luebeck
+ * Noemi Deppenwiese, Hannes Ulrich
+ ******************************************************************************/
+package server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import JsonModels.CacheStatistics;
+import converter.ConversionSnapshot;
+
+/**
+ * Keeps the snapshot of the last conversion of each Questionnaire, so the next conversion of the same
+ * Questionnaire only has to convert the items that changed. Entries are keyed by server base and id. Only
+ * conversions without MOLGENIS name checking are kept, the checked names may be taken by the next request. A
+ * snapshot is removed while it is used, so two conversions never continue on the same model.
+ */
+public class ConversionSnapshotCache {
+
+	final static Logger logger = LoggerFactory.getLogger(ConversionSnapshotCache.class);
+
+	public final static int DEFAULT_MAX_ENTRIES = 20;
+
+	public final static int DEFAULT_TTL_SECONDS = 86400;
+
+	private static ConversionSnapshotCache instance;
+
+	private ExpiringLRUCache<String, ConversionSnapshot> snapshots;
+
+	private ConversionSnapshotCache(int maxEntries, int ttlSeconds) {
+		this.snapshots = new ExpiringLRUCache<String, ConversionSnapshot>(maxEntries, ttlSeconds);
+	}
+
+	/**
+	 * (Re)creates the cache with the given limits. Cached entries are discarded.
+	 * @param maxEntries 0 disables incremental conversions
+	 * @param ttlSeconds
+	 * @return the new cache
+	 */
+	public static synchronized ConversionSnapshotCache configure(int maxEntries, int ttlSeconds) {
+		logger.debug("Configuring conversion snapshot cache (maxEntries " + maxEntries + ", ttl " + ttlSeconds + "s)");
+		instance = new ConversionSnapshotCache(maxEntries, ttlSeconds);
+		return instance;
+	}
+
+	public static synchronized ConversionSnapshotCache getInstance() {
+		if (instance == null) {
+			instance = new ConversionSnapshotCache(DEFAULT_MAX_ENTRIES, DEFAULT_TTL_SECONDS);
+		}
+		return instance;
+	}
+
+	/**
+	 * Removes the snapshot from the cache and returns it
+	 * @param baseURL
+	 * @param questionnaireID
+	 * @return the snapshot or null
+	 */
+	public synchronized ConversionSnapshot take(String baseURL, String questionnaireID) {
+		String key = key(baseURL, questionnaireID);
+		// Counts the hit or miss, expired snapshots are dropped
+		ConversionSnapshot snapshot = this.snapshots.get(key);
+		if (snapshot != null) {
+			this.snapshots.remove(key);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * @param baseURL
+	 * @param questionnaireID
+	 * @param snapshot may be null, nothing is cached then
+	 */
+	public void put(String baseURL, String questionnaireID, ConversionSnapshot snapshot) {
+		this.snapshots.put(key(baseURL, questionnaireID), snapshot);
+	}
+
+	public CacheStatistics getStatistics() {
+		return this.snapshots.getStatistics();
+	}
+
+	private static String key(String baseURL, String questionnaireID) {
+		return FHIRClientRegistry.normalizeBaseURL(baseURL) + "/Questionnaire/" + questionnaireID;
+	}
+
+}
@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright (c) 2017 - IT Center for Clinical Research, University of Luebeck
+ * Noemi Deppenwiese, Hannes Ulrich
+ ******************************************************************************/
+package server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import JsonModels.CacheStatistics;
+
+/**
+ * Size bounded cache which evicts the least recently used entry once full and drops entries older than the
+ * configured time to live. All methods are synchronized, so one instance can be shared between conversions.
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class ExpiringLRUCache<K, V> {
+
+	private final int maxEntries;
+
+	private final long ttlMillis;
+
+	private final LinkedHashMap<K, CacheEntry<V>> entries;
+
+	private long hits;
+
+	private long misses;
+
+	private long evictions;
+
+	/**
+	 * @param maxEntries Maximum number of entries, the least recently used one is evicted beyond that
+	 * @param ttlSeconds Entries older than this are treated as absent. Values <= 0 disable expiry
+	 */
+	public ExpiringLRUCache(int maxEntries, long ttlSeconds) {
+		this.maxEntries = maxEntries;
+		this.ttlMillis = ttlSeconds * 1000;
+		// Access order makes the first entry the least recently used one
+		this.entries = new LinkedHashMap<K, CacheEntry<V>>(16, 0.75f, true);
+	}
+
+	/**
+	 * @param key
+	 * @return the cached value or null if absent or expired
+	 */
+	public synchronized V get(K key) {
+		CacheEntry<V> entry = this.entries.get(key);
+		if (entry == null) {
+			this.misses++;
+			return null;
+		}
+		if (this.isExpired(entry)) {
+			this.entries.remove(key);
+			this.evictions++;
+			this.misses++;
+			return null;
+		}
+		this.hits++;
+		return entry.value;
+	}
+
+	public synchronized void put(K key, V value) {
+		if (key == null || value == null) {
+			return;
+		}
+		this.entries.put(key, new CacheEntry<V>(value));
+		Iterator<Map.Entry<K, CacheEntry<V>>> iterator = this.entries.entrySet().iterator();
+		while (this.entries.size() > this.maxEntries && iterator.hasNext()) {
+			iterator.next();
+			iterator.remove();
+			this.evictions++;
+		}
+	}
+
+	public synchronized V remove(K key) {
+		CacheEntry<V> entry = this.entries.remove(key);
+		return entry == null ? null : entry.value;
+	}
+
+	public synchronized void clear() {
+		this.entries.clear();
+	}
+
+	public synchronized int size() {
+		return this.entries.size();
+	}
+
+	/**
+	 * @return hit, miss and eviction counters of this cache
+	 */
+	public synchronized CacheStatistics getStatistics() {
+		CacheStatistics stats = new CacheStatistics();
+		stats.size = this.entries.size();
+		stats.maxEntries = this.maxEntries;
+		stats.hits = this.hits;
+		stats.misses = this.misses;
+		stats.evictions = this.evictions;
+		if (this.hits + this.misses > 0) {
+			stats.hitRate = (double) this.hits / (this.hits + this.misses);
+		}
+		return stats;
+	}
+
+	private boolean isExpired(CacheEntry<V> entry) {
+		return this.ttlMillis > 0 && System.currentTimeMillis() - entry.created > this.ttlMillis;
+	}
+
+	private static class CacheEntry<V> {
+
+		private final V value;
+
+		private final long created;
+
+		CacheEntry(V value) {
+			this.value = value;
+			this.created = System.currentTimeMillis();
+		}
+	}
+
+}
@@ -0,0 +1,345 @@
+/*******************************************************************************
+ * Copyright (c) 2017 - IT Center for Clinical Research, University of Luebeck
+ * Noemi Deppenwiese, Hannes Ulrich
+ ******************************************************************************/
+package server;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import JsonModels.PoolStatistics;
+import JsonModels.ServerStatistics;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IRestfulClientFactory;
+
+/**
+ * Process wide registry holding one FHIR client per server base. All clients share a pooled keep-alive
+ * connection manager, so repeated requests to the same server reuse open connections.
+ * <p>
+ * Per server it also keeps the connect and read timeouts, a circuit breaker and a latency histogram.
+ */
+public class FHIRClientRegistry {
+
+	final static Logger logger = LoggerFactory.getLogger(FHIRClientRegistry.class);
+
+	public final static int DEFAULT_POOL_MAX_TOTAL = 50;
+
+	public final static int DEFAULT_POOL_MAX_PER_ROUTE = 10;
+
+	public final static int DEFAULT_IDLE_SECONDS = 60;
+
+	public final static int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
+
+	public final static int DEFAULT_READ_TIMEOUT_MILLIS = 30000;
+
+	private static FHIRClientRegistry instance;
+
+	private FhirContext context;
+
+	private PoolingHttpClientConnectionManager connectionManager;
+
+	private CloseableHttpClient httpClient;
+
+	private ConcurrentHashMap<String, IGenericClient> clients;
+
+	private ScheduledExecutorService idleConnectionEvictor;
+
+	private boolean factoryConfigured;
+
+	private volatile int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+
+	private volatile int readTimeoutMillis = DEFAULT_READ_TIMEOUT_MILLIS;
+
+	/**
+	 * Normalized base URL -> {connect, read} timeouts overriding the defaults
+	 */
+	private ConcurrentHashMap<String, int[]> serverTimeouts;
+
+	private int failureThreshold = CircuitBreaker.DEFAULT_FAILURE_THRESHOLD;
+
+	private int openSeconds = CircuitBreaker.DEFAULT_OPEN_SECONDS;
+
+	private int slowCallMillis = CircuitBreaker.DEFAULT_SLOW_CALL_MILLIS;
+
+	private ConcurrentHashMap<String, CircuitBreaker> breakers;
+
+	private ConcurrentHashMap<String, LatencyHistogram> latencies;
+
+	private FHIRClientRegistry(FhirContext context, int maxTotal, int maxPerRoute, int idleSeconds) {
+		this.context = context;
+		this.clients = new ConcurrentHashMap<String, IGenericClient>();
+		this.serverTimeouts = new ConcurrentHashMap<String, int[]>();
+		this.breakers = new ConcurrentHashMap<String, CircuitBreaker>();
+		this.latencies = new ConcurrentHashMap<String, LatencyHistogram>();
+
+		this.connectionManager = new PoolingHttpClientConnectionManager();
+		this.connectionManager.setMaxTotal(maxTotal);
+		this.connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+		// Timeouts are looked up per request, so they can differ between servers
+		this.httpClient = HttpClients.custom().setConnectionManager(this.connectionManager)
+				.addInterceptorFirst((HttpRequestInterceptor) this::applyTimeouts).build();
+
+		// Close connections that have been idle for too long, same scheduling as the EMX file remover
+		this.idleConnectionEvictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "fhir-idle-connection-evictor");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.idleConnectionEvictor.scheduleAtFixedRate(() -> {
+			this.connectionManager.closeExpiredConnections();
+			this.connectionManager.closeIdleConnections(idleSeconds, TimeUnit.SECONDS);
+		}, idleSeconds, idleSeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * (Re)creates the registry with the given pool settings. Existing clients and connections are discarded.
+	 * @param context FhirContext used to create clients
+	 * @param maxTotal Maximum number of pooled connections
+	 * @param maxPerRoute Maximum number of pooled connections per server
+	 * @param idleSeconds Connections idle for longer than this are closed
+	 * @return the new registry
+	 */
+	public static synchronized FHIRClientRegistry configure(FhirContext context, int maxTotal, int maxPerRoute,
+			int idleSeconds) {
+		if (instance != null) {
+			instance.shutdown();
+		}
+		logger.debug("Configuring FHIR client pool (maxTotal " + maxTotal + ", maxPerRoute " + maxPerRoute
+				+ ", idle eviction after " + idleSeconds + "s)");
+		instance = new FHIRClientRegistry(context, maxTotal, maxPerRoute, idleSeconds);
+		return instance;
+	}
+
+	/**
+	 * Returns the registry, creating one with default pool settings if none was configured yet.
+	 * @param context
+	 * @return the registry
+	 */
+	public static synchronized FHIRClientRegistry getInstance(FhirContext context) {
+		if (instance == null) {
+			instance = new FHIRClientRegistry(context, DEFAULT_POOL_MAX_TOTAL, DEFAULT_POOL_MAX_PER_ROUTE,
+					DEFAULT_IDLE_SECONDS);
+		}
+		return instance;
+	}
+
+	/**
+	 * Returns the shared client for the given server base, creating it on first use.
+	 * @param baseURL
+	 * @return client for baseURL
+	 */
+	public IGenericClient getClient(String baseURL) {
+		String key = normalizeBaseURL(baseURL);
+		IGenericClient client = this.clients.get(key);
+		if (client == null) {
+			this.configureFactory();
+			client = this.clients.computeIfAbsent(key, base -> {
+				logger.debug("Creating FHIR client for " + base);
+				return this.context.newRestfulGenericClient(base);
+			});
+		}
+		return client;
+	}
+
+	/**
+	 * Hands the pooled http client to HAPI. The pool settings live in the connection manager of that client,
+	 * the pool setters of the factory must not be used: they make HAPI discard the client and build its own.
+	 */
+	private synchronized void configureFactory() {
+		if (this.factoryConfigured) {
+			return;
+		}
+		IRestfulClientFactory factory = this.context.getRestfulClientFactory();
+		factory.setHttpClient(this.httpClient);
+		this.factoryConfigured = true;
+	}
+
+	/**
+	 * Sets the timeouts used for all servers without their own ones.
+	 * @param connectMillis
+	 * @param readMillis Maximum time without data while waiting for a response
+	 */
+	public void setDefaultTimeouts(int connectMillis, int readMillis) {
+		this.connectTimeoutMillis = connectMillis;
+		this.readTimeoutMillis = readMillis;
+	}
+
+	/**
+	 * Sets the timeouts for requests below the given base URL.
+	 * @param baseURL
+	 * @param connectMillis
+	 * @param readMillis
+	 */
+	public void setTimeouts(String baseURL, int connectMillis, int readMillis) {
+		this.serverTimeouts.put(normalizeBaseURL(baseURL), new int[] { connectMillis, readMillis });
+	}
+
+	/**
+	 * Parses and sets per server timeouts given as comma separated baseURL=connectMillis/readMillis entries.
+	 * Malformed entries are logged and left out.
+	 * @param timeouts may be null
+	 */
+	public void setTimeouts(String timeouts) {
+		if (timeouts == null || timeouts.trim().isEmpty()) {
+			return;
+		}
+		for (String entry : timeouts.split(",")) {
+			int separator = entry.lastIndexOf('=');
+			String[] millis = separator < 0 ? new String[0] : entry.substring(separator + 1).split("/");
+			try {
+				this.setTimeouts(entry.substring(0, separator), Integer.parseInt(millis[0].trim()),
+						Integer.parseInt(millis[1].trim()));
+			} catch (RuntimeException e) {
+				logger.error("Ignoring malformed timeout entry " + entry + ", expected baseURL=connectMillis/readMillis");
+			}
+		}
+	}
+
+	/**
+	 * Settings of the circuit breakers created from now on
+	 * @param failureThreshold Consecutive failed or slow calls that open a breaker, values < 1 disable them
+	 * @param openSeconds
+	 * @param slowCallMillis
+	 */
+	public void configureCircuitBreakers(int failureThreshold, int openSeconds, int slowCallMillis) {
+		this.failureThreshold = failureThreshold;
+		this.openSeconds = openSeconds;
+		this.slowCallMillis = slowCallMillis;
+		this.breakers.clear();
+	}
+
+	/**
+	 * @param baseURL
+	 * @return the circuit breaker for requests to the given server
+	 */
+	public CircuitBreaker getCircuitBreaker(String baseURL) {
+		return this.breakers.computeIfAbsent(normalizeBaseURL(baseURL),
+				base -> new CircuitBreaker(base, this.failureThreshold, this.openSeconds, this.slowCallMillis));
+	}
+
+	/**
+	 * @param baseURL
+	 * @return the durations of the requests to the given server
+	 */
+	public LatencyHistogram getLatencyHistogram(String baseURL) {
+		return this.latencies.computeIfAbsent(normalizeBaseURL(baseURL), base -> new LatencyHistogram());
+	}
+
+	/**
+	 * @return circuit breaker state, timeouts and latencies of every server requested so far
+	 */
+	public Map<String, ServerStatistics> getServerStatistics() {
+		TreeMap<String, ServerStatistics> result = new TreeMap<String, ServerStatistics>();
+		for (Map.Entry<String, CircuitBreaker> entry : this.breakers.entrySet()) {
+			CircuitBreaker breaker = entry.getValue();
+			ServerStatistics stats = new ServerStatistics();
+			stats.circuit = breaker.getState().name();
+			stats.consecutiveFailures = breaker.getConsecutiveFailures();
+			stats.calls = breaker.getCalls();
+			stats.failures = breaker.getFailures();
+			stats.rejected = breaker.getRejected();
+			int[] timeouts = this.getTimeouts(entry.getKey());
+			stats.connectTimeoutMillis = timeouts[0];
+			stats.readTimeoutMillis = timeouts[1];
+			LatencyHistogram latency = this.getLatencyHistogram(entry.getKey());
+			stats.meanMillis = latency.getMeanMillis();
+			stats.latency = latency.getBuckets();
+			result.put(entry.getKey(), stats);
+		}
+		return result;
+	}
+
+	/**
+	 * @param url request URL
+	 * @return {connect, read} timeouts of the longest configured base URL the given one starts with, or the
+	 *         defaults
+	 */
+	private int[] getTimeouts(String url) {
+		int[] timeouts = null;
+		int matched = -1;
+		for (Map.Entry<String, int[]> entry : this.serverTimeouts.entrySet()) {
+			String base = entry.getKey();
+			if (base.length() > matched && (url.equals(base) || url.startsWith(base + "/"))) {
+				timeouts = entry.getValue();
+				matched = base.length();
+			}
+		}
+		return timeouts != null ? timeouts : new int[] { this.connectTimeoutMillis, this.readTimeoutMillis };
+	}
+
+	private void applyTimeouts(HttpRequest request, HttpContext context) {
+		HttpClientContext clientContext = HttpClientContext.adapt(context);
+		String url = request.getRequestLine().getUri();
+		HttpHost target = clientContext.getTargetHost();
+		if (!url.startsWith("http://") && !url.startsWith("https://") && target != null) {
+			// Default ports are left out, like in configured base URLs
+			boolean defaultPort = target.getPort() < 0
+					|| (target.getPort() == 443 && "https".equals(target.getSchemeName()))
+					|| (target.getPort() == 80 && "http".equals(target.getSchemeName()));
+			url = target.getSchemeName() + "://" + target.getHostName() + (defaultPort ? "" : ":" + target.getPort()) + url;
+		}
+		int[] timeouts = this.getTimeouts(url);
+		RequestConfig config = clientContext.getRequestConfig();
+		clientContext.setRequestConfig(RequestConfig.copy(config != null ? config : RequestConfig.DEFAULT)
+				.setConnectTimeout(timeouts[0]).setSocketTimeout(timeouts[1]).build());
+	}
+
+	/**
+	 * @return the pooled http client, for requests HAPI can not make (e.g. downloading NDJSON files)
+	 */
+	public CloseableHttpClient getHttpClient() {
+		return this.httpClient;
+	}
+
+	/**
+	 * @return current usage of the connection pool
+	 */
+	public PoolStatistics getPoolStatistics() {
+		PoolStats stats = this.connectionManager.getTotalStats();
+		PoolStatistics result = new PoolStatistics();
+		result.leased = stats.getLeased();
+		result.pending = stats.getPending();
+		result.available = stats.getAvailable();
+		result.max = stats.getMax();
+		result.clients = this.clients.size();
+		return result;
+	}
+
+	private void shutdown() {
+		this.idleConnectionEvictor.shutdownNow();
+		this.clients.clear();
+		this.breakers.clear();
+		this.latencies.clear();
+		this.connectionManager.shutdown();
+	}
+
+	static String normalizeBaseURL(String baseURL) {
+		if (baseURL == null) {
+			return null;
+		}
+		String normalized = baseURL.trim();
+		while (normalized.endsWith("/")) {
+			normalized = normalized.substring(0, normalized.length() - 1);
+		}
+		return normalized;
+	}
+
+}
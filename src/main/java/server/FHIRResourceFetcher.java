@@ -4,20 +4,63 @@
  ******************************************************************************/
 package server;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.dstu3.model.Bundle.BundleType;
+import org.hl7.fhir.dstu3.model.Bundle.HTTPVerb;
 import org.hl7.fhir.dstu3.model.DataElement;
 import org.hl7.fhir.dstu3.model.ElementDefinition;
 import org.hl7.fhir.dstu3.model.IdType;
+import org.hl7.fhir.dstu3.model.IntegerType;
 import org.hl7.fhir.dstu3.model.Parameters;
 import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.hl7.fhir.dstu3.model.QuestionnaireResponse;
 import org.hl7.fhir.dstu3.model.Reference;
 import org.hl7.fhir.dstu3.model.Resource;
 import org.hl7.fhir.dstu3.model.StructureDefinition;
+import org.hl7.fhir.dstu3.model.UriType;
 import org.hl7.fhir.dstu3.model.ValueSet;
+import org.hl7.fhir.dstu3.model.ValueSet.ValueSetExpansionComponent;
+import org.hl7.fhir.dstu3.model.ValueSet.ValueSetExpansionContainsComponent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.client.exceptions.NonFhirResponseException;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.IOperationUnnamed;
+import ca.uhn.fhir.rest.gclient.IReadExecutable;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import converter.QuestionnaireConverter;
 
 public class FHIRResourceFetcher {
@@ -26,6 +69,47 @@ public class FHIRResourceFetcher {
 	
 	private String baseURL;
 	
+	private FHIRClientRegistry clients;
+	
+	private TerminologyCache terminologyCache;
+	
+	/**
+	 * Resources read in a batch Bundle but not yet requested, keyed like the terminology store
+	 */
+	private ConcurrentHashMap<String, Resource> batchResults;
+	
+	/**
+	 * Server bases that rejected batch Bundles, these are not asked again
+	 */
+	private final static Set<String> batchUnsupported = ConcurrentHashMap.newKeySet();
+	
+	public final static int DEFAULT_BATCH_SIZE = 100;
+	
+	public final static int DEFAULT_EXPANSION_PAGE_SIZE = 1000;
+	
+	private static int expansionPageSize = DEFAULT_EXPANSION_PAGE_SIZE;
+	
+	/**
+	 * If set, no server is contacted, resources are only taken from local sources and the terminology store
+	 */
+	private static boolean offline = false;
+	
+	public final static int DEFAULT_IO_THREADS = 32;
+	
+	public final static int DEFAULT_IO_QUEUE_CAPACITY = 1000;
+	
+	/**
+	 * Runs the asynchronous variants of the fetch methods, shared by all fetchers
+	 */
+	private static ThreadPoolExecutor ioExecutor;
+	
+	/**
+	 * Fetches currently running, see singleFlight
+	 */
+	private final static ConcurrentHashMap<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<String, CompletableFuture<Object>>();
+	
+	private final static AtomicLong coalescedFetches = new AtomicLong();
+	
 	final static Logger logger = LoggerFactory.getLogger(QuestionnaireConverter.class);
 	
 
@@ -38,22 +122,311 @@ public class FHIRResourceFetcher {
 		
 		this.baseURL = baseURL;
 		this.context = context;
+		this.clients = FHIRClientRegistry.getInstance(context);
+		this.terminologyCache = TerminologyCache.getInstance();
+		this.batchResults = new ConcurrentHashMap<String, Resource>();
 		
-		
 	}
 	
+	/**
+	 * @return the shared client for this fetchers server base
+	 */
+	private IGenericClient getClient(){
+		return this.clients.getClient(baseURL);
+	}
+	
+	/**
+	 * Fetches the Questionnaire. If it was fetched shortly before, the cached version is revalidated with a
+	 * conditional read and only downloaded again if it changed on the server.
+	 * @param questionnaireID
+	 * @return a Questionnaire the caller may modify, or null if it could not be fetched
+	 */
 	public Questionnaire fetchQuestionnaire(String questionnaireID){
+		//Local sources take precedence, the id may also be a canonical URL there
+		LocalResourceRepository local = LocalResourceRepository.getInstance();
+		if(local != null){
+			Questionnaire ques = local.find(Questionnaire.class, questionnaireID);
+			if(ques == null){
+				ques = local.find(Questionnaire.class, "Questionnaire/"+questionnaireID);
+			}
+			if(ques != null){
+				//Shared by all conversions like the cached ones below
+				return ques.copy();
+			}
+		}
+		if(offline){
+			logger.error("Questionnaire "+questionnaireID+" not found in local sources");
+			return null;
+		}
 		Questionnaire ques = null;
 		try{
-			ques = context.newRestfulGenericClient(baseURL).read().resource(Questionnaire.class).withId(questionnaireID).execute();
+			//Concurrent fetches of the same Questionnaire share one request
+			ques = singleFlight(this.getFlightKey("Questionnaire", questionnaireID), () -> this.readQuestionnaire(questionnaireID));
 		}catch(Exception e){
 			logger.error("Error while trying to fetch Questionnaire",e);
 			return null;
 		}
-		return ques;
+		//The conversion fills empty item fields from their definitions, keep the cached version untouched
+		return ques.copy();
 		
 	}
 	
+	/**
+	 * @param questionnaireID
+	 * @return the cached Questionnaire, revalidated or fetched again
+	 */
+	private Questionnaire readQuestionnaire(String questionnaireID){
+		QuestionnaireCache cache = QuestionnaireCache.getInstance();
+		Questionnaire cached = cache.get(baseURL, questionnaireID);
+		Questionnaire ques = null;
+		if(cached != null && cached.getIdElement().hasVersionIdPart()){
+			//Server answers 304 if unchanged, HAPI then returns the cached instance
+			ques = this.callServer(baseURL, () -> this.getClient().read().resource(Questionnaire.class).withId(questionnaireID)
+					.ifVersionMatches(cached.getIdElement().getVersionIdPart()).returnResource(cached).execute());
+		}else{
+			ques = this.callServer(baseURL, () -> this.getClient().read().resource(Questionnaire.class).withId(questionnaireID).execute());
+		}
+		if(ques != cached){
+			cache.put(baseURL, questionnaireID, ques);
+		}
+		return ques;
+	}
+	
+	/**
+	 * Sends a request unless the circuit breaker of the server is open, recording its duration and outcome.
+	 * Client errors such as 404 count as successful calls, the server did answer.
+	 * @param server base URL of the server the request goes to
+	 * @param call
+	 * @return the result of call
+	 * @throws ServerUnavailableException if the circuit breaker is open
+	 */
+	private <T> T callServer(String server, Supplier<T> call){
+		CircuitBreaker breaker = this.clients.getCircuitBreaker(server);
+		if(!breaker.allowRequest()){
+			throw new ServerUnavailableException(FHIRClientRegistry.normalizeBaseURL(server));
+		}
+		long start = System.nanoTime();
+		boolean failed = true;
+		try{
+			T result = call.get();
+			failed = false;
+			return result;
+		}catch(BaseServerResponseException e){
+			failed = isServerFailure(e);
+			throw e;
+		}finally{
+			long millis = (System.nanoTime() - start) / 1000000;
+			this.clients.getLatencyHistogram(server).record(millis);
+			breaker.record(failed, millis);
+		}
+	}
+	
+	/**
+	 * @param e
+	 * @return true if the server could not answer the request (connection failure, timeout, 5xx or 429), these
+	 * count as failures for the circuit breaker
+	 */
+	private static boolean isServerFailure(BaseServerResponseException e){
+		return e instanceof FhirClientConnectionException || e.getStatusCode() >= 500 || e.getStatusCode() == 429;
+	}
+	
+	/**
+	 * @param e
+	 * @return true if e means the server could not be reached or answer, not that the resource does not exist
+	 */
+	private static boolean isOutage(Exception e){
+		return e instanceof ServerUnavailableException
+				|| (e instanceof BaseServerResponseException && isServerFailure((BaseServerResponseException) e));
+	}
+	
+	/**
+	 * @param e
+	 * @return true if e means the resource does not exist, only then a reference is known to be unresolvable
+	 */
+	private static boolean isMissing(Exception e){
+		//Abstract URLs often point to web pages instead of FHIR servers
+		return e instanceof ResourceNotFoundException || e instanceof ResourceGoneException
+				|| (e instanceof NonFhirResponseException && !isOutage(e));
+	}
+	
+	/**
+	 * @param reference
+	 * @return the base URL of an absolute reference, this fetchers server base otherwise
+	 */
+	private String getServer(String reference){
+		if(reference != null){
+			IdType id = new IdType(reference);
+			if(id.isAbsolute() && id.getBaseUrl() != null){
+				return id.getBaseUrl();
+			}
+		}
+		return baseURL;
+	}
+	
+	/**
+	 * Runs fetch unless the same key is already being fetched by another thread, in which case its result (or
+	 * exception) is shared. Keys are only held while the fetch is running, results are cached elsewhere.
+	 * @param key see {@link #getFlightKey(String, String)}
+	 * @param fetch
+	 * @return the result of fetch
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> T singleFlight(String key, Supplier<T> fetch){
+		CompletableFuture<Object> own = new CompletableFuture<Object>();
+		CompletableFuture<Object> running = inFlight.putIfAbsent(key, own);
+		if(running != null){
+			coalescedFetches.incrementAndGet();
+			try{
+				return (T) running.join();
+			}catch(CompletionException e){
+				if(e.getCause() instanceof RuntimeException){
+					throw (RuntimeException) e.getCause();
+				}
+				throw e;
+			}
+		}
+		try{
+			T result = fetch.get();
+			own.complete(result);
+			return result;
+		}catch(RuntimeException | Error e){
+			own.completeExceptionally(e);
+			throw e;
+		}finally{
+			inFlight.remove(key, own);
+		}
+	}
+	
+	/**
+	 * @param resourceType
+	 * @param reference id, URL or reference as written
+	 * @return key identifying a fetch from this fetchers server
+	 */
+	private String getFlightKey(String resourceType, String reference){
+		return FHIRClientRegistry.normalizeBaseURL(baseURL)+" "+resourceType+" "+reference;
+	}
+	
+	/**
+	 * @return number of fetches that waited for an identical one instead of sending their own request
+	 */
+	public static long getCoalescedFetches(){
+		return coalescedFetches.get();
+	}
+	
+	
+	/**
+	 * Runs a Questionnaire search on this fetchers server and collects the ids of the matches, following the
+	 * next links of the result pages. Offline, nothing is found.
+	 * @param query Search parameters, with or without leading "Questionnaire?"
+	 * @param maxResults
+	 * @return ids of at most maxResults matching Questionnaires
+	 */
+	public List<String> searchQuestionnaireIDs(String query, int maxResults){
+		List<String> ids = new ArrayList<String>();
+		if(offline){
+			logger.warn("Questionnaire search is not available offline");
+			return ids;
+		}
+		String url = query.startsWith("Questionnaire") ? query : "Questionnaire?"+(query.startsWith("?") ? query.substring(1) : query);
+		Bundle page = this.callServer(baseURL, () -> this.getClient().search().byUrl(url).returnBundle(Bundle.class).execute());
+		while(page != null){
+			for(BundleEntryComponent entry : page.getEntry()){
+				if(entry.getResource() instanceof Questionnaire && ids.size() < maxResults){
+					ids.add(entry.getResource().getIdElement().getIdPart());
+				}
+			}
+			if(ids.size() >= maxResults || page.getLink(Bundle.LINK_NEXT) == null){
+				break;
+			}
+			Bundle current = page;
+			page = this.callServer(baseURL, () -> this.getClient().loadPage().next(current).execute());
+		}
+		return ids;
+	}
+	
+	/**
+	 * Pages through all QuestionnaireResponses to the Questionnaire on this fetchers server. Only the current
+	 * result page is kept, every response is handed to the consumer before the next page is loaded. Offline,
+	 * nothing is found.
+	 * @param questionnaireID
+	 * @param pageSize Responses per page
+	 * @param consumer
+	 * @return number of responses handed to the consumer
+	 */
+	public long forEachQuestionnaireResponse(String questionnaireID, int pageSize, Consumer<QuestionnaireResponse> consumer){
+		if(offline){
+			logger.warn("QuestionnaireResponse search is not available offline");
+			return 0;
+		}
+		long count = 0;
+		Bundle page = this.callServer(baseURL, () -> this.getClient().search().forResource(QuestionnaireResponse.class)
+				.where(QuestionnaireResponse.QUESTIONNAIRE.hasId("Questionnaire/"+questionnaireID))
+				.count(pageSize).returnBundle(Bundle.class).execute());
+		while(page != null){
+			for(BundleEntryComponent entry : page.getEntry()){
+				if(entry.getResource() instanceof QuestionnaireResponse){
+					consumer.accept((QuestionnaireResponse) entry.getResource());
+					count++;
+				}
+			}
+			if(page.getLink(Bundle.LINK_NEXT) == null){
+				break;
+			}
+			Bundle current = page;
+			page = this.callServer(baseURL, () -> this.getClient().loadPage().next(current).execute());
+		}
+		return count;
+	}
+	
+	/**
+	 * Downloads an NDJSON file, e.g. one of the output files of a bulk data $export, and hands its resources
+	 * to the consumer line by line while it is read. Offline, nothing is read.
+	 * @param fileURL
+	 * @param consumer
+	 * @return number of resources handed to the consumer
+	 * @throws IOException if the file can not be downloaded or contains invalid resources
+	 */
+	public long forEachNdjsonResource(String fileURL, Consumer<Resource> consumer) throws IOException{
+		if(offline){
+			logger.warn("NDJSON files are not downloaded offline");
+			return 0;
+		}
+		HttpGet get = new HttpGet(fileURL);
+		get.addHeader("Accept", "application/fhir+ndjson");
+		try(CloseableHttpResponse response = this.clients.getHttpClient().execute(get)){
+			if(response.getStatusLine().getStatusCode() != 200){
+				throw new IOException("Downloading "+fileURL+" failed with status "+response.getStatusLine().getStatusCode());
+			}
+			IParser parser = this.context.newJsonParser();
+			long count = 0;
+			int lineNumber = 0;
+			try(BufferedReader in = new BufferedReader(new InputStreamReader(response.getEntity().getContent(), StandardCharsets.UTF_8))){
+				String line;
+				while((line = in.readLine()) != null){
+					lineNumber++;
+					if(line.trim().isEmpty()){
+						continue;
+					}
+					try{
+						consumer.accept((Resource) parser.parseResource(line));
+					}catch(DataFormatException | ClassCastException e){
+						throw new IOException("Invalid resource in line "+lineNumber+" of "+fileURL, e);
+					}
+					count++;
+				}
+			}
+			return count;
+		}
+	}
+	
+	/**
+	 * Asynchronous variant of {@link #fetchQuestionnaire(String)}
+	 * @param questionnaireID
+	 * @return completes with the Questionnaire or null
+	 */
+	public CompletableFuture<Questionnaire> fetchQuestionnaireAsync(String questionnaireID){
+		return CompletableFuture.supplyAsync(() -> this.fetchQuestionnaire(questionnaireID), getExecutor());
+	}
 	
 	/**
 	 * Trys to fetch ValueSet. If result contains no expansion, method requestValueSetExpansion is called. If this method returns null (Expansion not possible), this Method will return null too.
@@ -79,33 +452,61 @@ public class FHIRResourceFetcher {
 			}
 		}
 		
+		//Known to fail on this server, skip straight to case 4
+		String unresolvableKey = this.getUnresolvableKey(reference);
+		if(unresolvableKey != null && this.terminologyCache.isKnownUnresolvable(unresolvableKey)){
+			return null;
+		}
+		
 		//Case 2: Absolute URL
 		if(reference.getReferenceElement().isAbsolute()){
+			String cacheKey = this.getValueSetKey(reference);
+			ValueSet cached = this.terminologyCache.getExpansion(cacheKey);
+			if(cached != null){
+				return cached;
+			}
 			try{
-				ValueSet valueSet = context.newRestfulGenericClient(baseURL).read().resource(ValueSet.class).withUrl(reference.getReference()).execute();
-				if(valueSet.hasExpansion()){
-					return valueSet;
-				}else{
-					//Try to expand ValueSet
-					return this.requestValueSetExpansion(valueSet);
-				}
+				ValueSet valueSet = singleFlight(this.getFlightKey("ValueSet", reference.getReference()),
+						() -> this.readThroughStore(cacheKey, reference.getReference(), ValueSet.class,
+								() -> this.getClient().read().resource(ValueSet.class).withUrl(reference.getReference()),
+								this::expandIfNecessary));
+				//Null if the expansion failed, the ValueSet itself exists
+				this.terminologyCache.putExpansion(cacheKey, valueSet);
+				return valueSet;
 			}catch(Exception e){
 				logger.debug("Unable to resolve referenced resource",e);
+				if(isOutage(e)){
+					//Server is down or slow, the reference may well be resolvable later
+					return null;
+				}
+				if(isMissing(e)){
+					this.terminologyCache.markUnresolvable(unresolvableKey);
+				}
 				//DADADADUM This is possibly an abstract URL or the Server is offline or or... Just carry on and deal with this in case 4!
 			}
 		}
 		
 		//Case 3: Internal URL
 		if((!reference.getReferenceElement().isAbsolute())&&(!reference.getReferenceElement().isLocal())&&(!reference.getReferenceElement().isEmpty())){
+			String cacheKey = this.getValueSetKey(reference);
+			ValueSet cached = this.terminologyCache.getExpansion(cacheKey);
+			if(cached != null){
+				return cached;
+			}
 			try{
-				ValueSet valueSet = context.newRestfulGenericClient(baseURL).read().resource(ValueSet.class).withId(reference.getReferenceElement()).execute();
-				if(valueSet.hasExpansion()){
-					return valueSet;
-				}else{
-					//Try to expand ValueSet
-					return this.requestValueSetExpansion(valueSet);
-				}
+				ValueSet valueSet = singleFlight(this.getFlightKey("ValueSet", reference.getReference()),
+						() -> this.readThroughStore(cacheKey, reference.getReference(), ValueSet.class,
+								() -> this.getClient().read().resource(ValueSet.class).withId(reference.getReferenceElement()),
+								this::expandIfNecessary));
+				this.terminologyCache.putExpansion(cacheKey, valueSet);
+				return valueSet;
 			}catch(Exception e){
+				if(isOutage(e)){
+					return null;
+				}
+				if(isMissing(e)){
+					this.terminologyCache.markUnresolvable(unresolvableKey);
+				}
 				//So did not work for some Reason. No Problem, continue with case 4!
 			}
 		}
@@ -116,21 +517,168 @@ public class FHIRResourceFetcher {
 	}
 	
 	
+	/**
+	 * Asynchronous variant of {@link #resolveValueSetReference(Questionnaire, Reference)}
+	 * @param ques
+	 * @param reference
+	 * @return completes with an expanded ValueSet or null
+	 */
+	public CompletableFuture<ValueSet> resolveValueSetReferenceAsync(Questionnaire ques, Reference reference){
+		return CompletableFuture.supplyAsync(() -> this.resolveValueSetReference(ques, reference), getExecutor());
+	}
+	
+	private ValueSet expandIfNecessary(ValueSet valueSet){
+		if(valueSet.hasExpansion()){
+			return valueSet;
+		}
+		//Try to expand ValueSet
+		return this.requestValueSetExpansion(valueSet);
+	}
+	
+	/**
+	 * Reads a resource from the local sources or the persistent terminology store, falling back to the server
+	 * if it is found in neither. Stale entries are revalidated with a conditional read, if that fails the stored
+	 * version is used anyway. Offline, stored entries are used as they are and the server is never asked.
+	 * @param key Identifies the resource, unique per resource type
+	 * @param reference The reference as written, looked up in the local sources
+	 * @param type
+	 * @param read Prepared read of the resource on the server
+	 * @param prepare Applied to resources read from the server before they are stored, e.g. expansion
+	 * @return the prepared resource, may be null if prepare returns null
+	 */
+	private <T extends Resource> T readThroughStore(String key, String reference, Class<T> type, Supplier<IReadExecutable<T>> read, UnaryOperator<T> prepare){
+		LocalResourceRepository local = LocalResourceRepository.getInstance();
+		if(local != null){
+			T found = local.find(type, reference);
+			if(found != null){
+				return prepare.apply(found);
+			}
+		}
+		TerminologyStore store = TerminologyStore.getInstance();
+		String storeKey = type.getSimpleName()+" "+key;
+		String server = this.getServer(reference);
+		//Already read as part of a batch
+		Resource batched = this.batchResults.remove(storeKey);
+		if(type.isInstance(batched)){
+			T prepared = prepare.apply(type.cast(batched));
+			if(store != null){
+				store.write(storeKey, prepared, getVersionStamp(batched));
+			}
+			return prepared;
+		}
+		if(store != null){
+			T stored = store.read(storeKey, type);
+			if(stored != null){
+				if(offline || !store.isStale(storeKey)){
+					return stored;
+				}
+				String versionStamp = store.getVersionStamp(storeKey);
+				if(versionStamp != null){
+					try{
+						T changed = this.callServer(server, () -> read.get().ifVersionMatches(versionStamp).returnNull().execute());
+						if(changed == null){
+							//Not modified on server
+							store.touch(storeKey);
+							return stored;
+						}
+						T prepared = prepare.apply(changed);
+						store.write(storeKey, prepared, getVersionStamp(changed));
+						return prepared;
+					}catch(Exception e){
+						logger.debug("Unable to revalidate stored "+storeKey+", using stored version",e);
+						return stored;
+					}
+				}
+			}
+		}
+		if(offline){
+			return null;
+		}
+		T resource = this.callServer(server, () -> read.get().execute());
+		T prepared = prepare.apply(resource);
+		if(store != null){
+			store.write(storeKey, prepared, getVersionStamp(resource));
+		}
+		return prepared;
+	}
+	
+	private static String getVersionStamp(Resource resource){
+		if(resource.getMeta().hasVersionId()){
+			return resource.getMeta().getVersionId();
+		}
+		return resource.getIdElement().getVersionIdPart();
+	}
+	
 	private ValueSet requestValueSetExpansion(ValueSet valueSet){
-		IGenericClient client = this.context.newRestfulGenericClient(baseURL);
+		//Same canonical ValueSet may be referenced in different ways, so look for the expansion as well
+		String cacheKey = TerminologyCache.canonicalKey(valueSet.getUrl(), valueSet.getVersion());
+		ValueSet cached = this.terminologyCache.getExpansion(cacheKey);
+		if(cached != null){
+			return cached;
+		}
+		//Enumerated codes and CodeSystems from local sources can be expanded without a request
+		LocalResourceRepository local = LocalResourceRepository.getInstance();
+		ValueSet expanded = local == null ? null : local.expand(valueSet);
+		if(expanded == null && !offline){
+			//Only the first page is requested (and cached) here, see streamRemainingExpansionPages
+			expanded = this.requestExpansionPage(valueSet, 0, expansionPageSize);
+		}
+		if(expanded != null){
+			//Keep what is needed to request further pages
+			if(!expanded.getIdElement().hasIdPart()){
+				expanded.setIdElement(valueSet.getIdElement());
+			}
+			if(!expanded.hasUrl()){
+				expanded.setUrl(valueSet.getUrl());
+			}
+			this.terminologyCache.putExpansion(cacheKey, expanded);
+		}
+		return expanded;
+	}
+	
+	/**
+	 * Invokes $expand for the given ValueSet, on the instance if it has an id or on the type with its url otherwise.
+	 * @param valueSet
+	 * @param offset
+	 * @param count Page size, values <= 0 request the whole expansion at once
+	 * @return the expanded ValueSet or null if the server did not return one
+	 */
+	private ValueSet requestExpansionPage(ValueSet valueSet, int offset, int count){
+		IGenericClient client = this.getClient();
+		
+		Parameters inParams = new Parameters();
+		if(count > 0){
+			inParams.addParameter().setName("offset").setValue(new IntegerType(offset));
+			inParams.addParameter().setName("count").setValue(new IntegerType(count));
+		}
+		IOperationUnnamed operation = null;
+		if(valueSet.getIdElement().hasIdPart() || !valueSet.hasUrl()){
+			operation = client.operation().onInstance(valueSet.getIdElement());
+		}else{
+			inParams.addParameter().setName("url").setValue(new UriType(valueSet.getUrl()));
+			operation = client.operation().onType(ValueSet.class);
+		}
 		 
 		// Invoke $expand on ValueSet
-		Parameters outParams = client
-		   .operation()
-		   .onInstance(valueSet.getIdElement())
-		   .named("$expand")
-		   .withNoParameters(Parameters.class) // No input parameters
-		   .useHttpGet()
-		   .execute();
+		Parameters outParams = null;
+		IOperationUnnamed expand = operation;
+		String server = this.getServer(valueSet.getIdElement().getValue());
+		if(inParams.isEmpty()){
+			outParams = this.callServer(server, () -> expand
+			   .named("$expand")
+			   .withNoParameters(Parameters.class) // No input parameters
+			   .useHttpGet()
+			   .execute());
+		}else{
+			outParams = this.callServer(server, () -> expand
+			   .named("$expand")
+			   .withParameters(inParams)
+			   .useHttpGet()
+			   .execute());
+		}
 		
 		try{
-			ValueSet expanded = (ValueSet) outParams.getParameterFirstRep().getResource();
-			return expanded;
+			return (ValueSet) outParams.getParameterFirstRep().getResource();
 		}catch(ClassCastException e){
 			e.printStackTrace();
 			//Result is probably OperationOutcome, but we don't care here because Expansion did not work anyway.
@@ -138,103 +686,325 @@ public class FHIRResourceFetcher {
 		}
 	}
 	
+	/**
+	 * Expansions are requested in pages of the configured size. This requests the pages following the given one
+	 * and hands their contains elements to pageHandler one page at a time, so only one page is held in memory.
+	 * Does nothing if the given expansion is already complete.
+	 * @param expansion Expanded ValueSet as returned by resolveValueSetReference
+	 * @param pageHandler Called once for each further page
+	 * @return false if not all codes could be received (offline, a page failed or the server does not page),
+	 * the pages handed to pageHandler up to then are kept
+	 */
+	public boolean streamRemainingExpansionPages(ValueSet expansion, Consumer<List<ValueSetExpansionContainsComponent>> pageHandler){
+		if(expansionPageSize <= 0 || !expansion.hasExpansion()){
+			return true;
+		}
+		ValueSetExpansionComponent first = expansion.getExpansion();
+		int received = first.getContains().size();
+		int offset = first.getOffset() + received;
+		boolean more = hasMorePages(first, offset, received);
+		if(more && offline){
+			logger.warn("Only "+offset+" codes of "+expansion.getUrl()+" are available offline");
+			return false;
+		}
+		String previousFirstCode = getFirstCode(first);
+		while(more){
+			ValueSet page;
+			try{
+				page = this.requestExpansionPage(expansion, offset, expansionPageSize);
+			}catch(Exception e){
+				logger.warn("Requesting codes from "+offset+" of "+expansion.getUrl()+" failed",e);
+				return false;
+			}
+			if(page == null || page.getExpansion().getContains().isEmpty()){
+				//Only complete if the server said so with its total
+				return !first.hasTotal();
+			}
+			ValueSetExpansionComponent pageExpansion = page.getExpansion();
+			//Servers ignoring offset return the same page again and again
+			String firstCode = getFirstCode(pageExpansion);
+			if((pageExpansion.hasOffset() && pageExpansion.getOffset() != offset) || firstCode.equals(previousFirstCode)){
+				logger.warn("Server does not page the expansion of "+expansion.getUrl()+", stopped at "+offset+" codes");
+				return false;
+			}
+			previousFirstCode = firstCode;
+			received = pageExpansion.getContains().size();
+			pageHandler.accept(pageExpansion.getContains());
+			offset += received;
+			more = hasMorePages(pageExpansion, offset, received);
+		}
+		return true;
+	}
+	
+	private static boolean hasMorePages(ValueSetExpansionComponent page, int offset, int received){
+		//Without a total, a full page means there may be more
+		return page.hasTotal() ? offset < page.getTotal() : received >= expansionPageSize;
+	}
+	
+	private static String getFirstCode(ValueSetExpansionComponent page){
+		if(page.getContains().isEmpty()){
+			return "";
+		}
+		ValueSetExpansionContainsComponent contains = page.getContains().get(0);
+		return contains.getSystem()+"|"+contains.getCode();
+	}
+	
+	public static int getExpansionPageSize(){
+		return expansionPageSize;
+	}
+	
+	/**
+	 * @param pageSize Number of codes requested per $expand call, values <= 0 request whole expansions at once
+	 */
+	public static void setExpansionPageSize(int pageSize){
+		expansionPageSize = pageSize;
+	}
+	
+	/**
+	 * (Re)creates the executor of the asynchronous fetch methods. Tasks already submitted to the previous one
+	 * are still completed.
+	 * @param threads Maximum number of fetches running at the same time
+	 * @param queueCapacity Fetches waiting beyond that run on the calling thread
+	 */
+	public static synchronized void configureExecutor(int threads, int queueCapacity){
+		if(ioExecutor != null){
+			ioExecutor.shutdown();
+		}
+		AtomicInteger count = new AtomicInteger();
+		ioExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(queueCapacity), runnable -> {
+					Thread thread = new Thread(runnable, "fhir2emx-io-"+count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}, new ThreadPoolExecutor.CallerRunsPolicy());
+		ioExecutor.allowCoreThreadTimeOut(true);
+	}
+	
+	private static synchronized Executor getExecutor(){
+		if(ioExecutor == null){
+			configureExecutor(DEFAULT_IO_THREADS, DEFAULT_IO_QUEUE_CAPACITY);
+		}
+		return ioExecutor;
+	}
+	
+	public static boolean isOffline(){
+		return offline;
+	}
+	
+	/**
+	 * @param enabled If true, resources are only taken from local sources and the terminology store
+	 */
+	public static void setOffline(boolean enabled){
+		offline = enabled;
+	}
+	
+	/**
+	 * Reads all given ValueSets (expanded) and definitions from this fetchers server in batch Bundles instead
+	 * of one request each. Results are kept until the corresponding resolve call asks for them. Entries that
+	 * fail, references to other servers and everything on servers without batch support are left to the
+	 * single reads of the resolve methods.
+	 * @param valueSetReferences item.options references
+	 * @param definitionURIs item.definition URIs
+	 * @param batchSize Maximum number of entries per Bundle
+	 */
+	public void readBatch(Collection<String> valueSetReferences, Collection<String> definitionURIs, int batchSize){
+		String base = FHIRClientRegistry.normalizeBaseURL(baseURL);
+		if(offline || batchUnsupported.contains(base)){
+			return;
+		}
+		TerminologyStore store = TerminologyStore.getInstance();
+		LocalResourceRepository local = LocalResourceRepository.getInstance();
+		//Request URL -> store key
+		LinkedHashMap<String, String> pending = new LinkedHashMap<String, String>();
+		for(String referenceString : valueSetReferences){
+			Reference reference = new Reference(referenceString);
+			if(reference.getReferenceElement().isLocal() || this.terminologyCache.isKnownUnresolvable(this.getUnresolvableKey(reference))
+					|| (local != null && local.contains(ValueSet.class, referenceString))){
+				continue;
+			}
+			String key = this.getValueSetKey(reference);
+			String storeKey = ValueSet.class.getSimpleName()+" "+key;
+			String relative = this.toServerRelative(referenceString, "ValueSet");
+			if(relative != null && this.terminologyCache.getExpansion(key) == null && (store == null || store.isStale(storeKey))){
+				pending.put(relative+"/$expand"+(expansionPageSize > 0 ? "?offset=0&count="+expansionPageSize : ""), storeKey);
+			}
+		}
+		for(String uri : definitionURIs){
+			String resourceURL = uri.split("#")[0];
+			String type = resourceURL.contains("DataElement") ? "DataElement" : resourceURL.contains("StructureDefinition") ? "StructureDefinition" : null;
+			if(type == null || (local != null && local.contains(type.equals("DataElement") ? DataElement.class : StructureDefinition.class, resourceURL))){
+				continue;
+			}
+			String storeKey = type+" "+this.getDefinitionKey(resourceURL);
+			String relative = this.toServerRelative(resourceURL, type);
+			if(relative != null && this.terminologyCache.getDefinition(storeKey) == null && (store == null || store.isStale(storeKey))){
+				pending.put(relative, storeKey);
+			}
+		}
+		
+		List<Map.Entry<String, String>> requests = new ArrayList<Map.Entry<String, String>>(pending.entrySet());
+		for(int start = 0; start < requests.size(); start += batchSize){
+			List<Map.Entry<String, String>> chunk = requests.subList(start, Math.min(start + batchSize, requests.size()));
+			Bundle batch = new Bundle();
+			batch.setType(BundleType.BATCH);
+			for(Map.Entry<String, String> request : chunk){
+				batch.addEntry().getRequest().setMethod(HTTPVerb.GET).setUrl(request.getKey());
+			}
+			Bundle response = null;
+			try{
+				response = this.callServer(baseURL, () -> this.getClient().transaction().withBundle(batch).execute());
+			}catch(Exception e){
+				if(isOutage(e)){
+					logger.debug("Server "+base+" is unavailable, batch read cancelled",e);
+					return;
+				}
+				logger.debug("Server "+base+" does not seem to support batch Bundles, using single reads",e);
+				batchUnsupported.add(base);
+				return;
+			}
+			//Entries of the response correspond to the request entries by position
+			for(int i = 0; i < chunk.size() && i < response.getEntry().size(); i++){
+				BundleEntryComponent entry = response.getEntry().get(i);
+				if(entry.hasResponse() && !entry.getResponse().getStatus().startsWith("2")){
+					logger.debug("Batch entry "+chunk.get(i).getKey()+" failed with status "+entry.getResponse().getStatus());
+					continue;
+				}
+				Resource resource = entry.getResource();
+				//$expand may answer with Parameters wrapping the ValueSet
+				if(resource instanceof Parameters){
+					resource = ((Parameters) resource).getParameterFirstRep().getResource();
+				}
+				if(resource != null){
+					this.batchResults.put(chunk.get(i).getValue(), resource);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @param url absolute or internal URL
+	 * @param resourceType expected type
+	 * @return the URL relative to this fetchers server base, or null if it points to another server or type
+	 */
+	private String toServerRelative(String url, String resourceType){
+		String base = FHIRClientRegistry.normalizeBaseURL(baseURL);
+		IdType id = new IdType(url);
+		if(id.isAbsolute()){
+			if(!url.startsWith(base+"/")){
+				return null;
+			}
+			id = new IdType(url.substring(base.length()+1));
+		}
+		if(!resourceType.equals(id.getResourceType()) || !id.hasIdPart()){
+			return null;
+		}
+		return id.toUnqualifiedVersionless().getValue();
+	}
+	
+	/**
+	 * @param reference non local ValueSet reference
+	 * @return the key of its expansion in the terminology cache
+	 */
+	private String getValueSetKey(Reference reference){
+		if(reference.getReferenceElement().isAbsolute()){
+			return TerminologyCache.canonicalKey(reference.getReference(), null);
+		}
+		//Internal references are only unique per server
+		return FHIRClientRegistry.normalizeBaseURL(baseURL)+"/"+reference.getReferenceElement().toUnqualifiedVersionless().getValue();
+	}
+	
+	/**
+	 * @param reference
+	 * @return key of the reference in the negative cache, or null for local and empty references
+	 */
+	private String getUnresolvableKey(Reference reference){
+		if(reference.getReference() == null || reference.getReferenceElement().isLocal()){
+			return null;
+		}
+		return FHIRClientRegistry.normalizeBaseURL(baseURL)+" "+reference.getReference();
+	}
+	
+	/**
+	 * @param resourceURL absolute or internal URL of a DataElement or StructureDefinition
+	 * @return key of the resource in the terminology store
+	 */
+	private String getDefinitionKey(String resourceURL){
+		if(new IdType(resourceURL).isAbsolute()){
+			return resourceURL;
+		}
+		//Internal references are only unique per server
+		return FHIRClientRegistry.normalizeBaseURL(baseURL)+"/"+resourceURL;
+	}
+	
 	public ElementDefinition resolveElementDefinitionURI(String uri){
-		ElementDefinition elemDef = null;
 		//Separate the Reference to the containing Resource from the internal reference to the actual Element Definition
 		String[] parts = uri.split("#");
+		IndexedDefinition definition = this.fetchElementDefinitions(parts[0]);
+		if(definition == null){
+			return null;
+		}
 		if(parts.length == 1){
 			//Assume Resource URL, use first occurrence off Element Definition
-			IdType resource = new IdType(parts[0]);
-			//For absolute URL
-			if(resource.isAbsolute()){
-				if(parts[0].contains("DataElement")){
-					DataElement element = context.newRestfulGenericClient(baseURL).read().resource(DataElement.class).withUrl(parts[0]).execute();
-					elemDef = element.getElementFirstRep();
-					return elemDef;
-				}else{
-					if(parts[0].contains("StructureDefinition")){
-						StructureDefinition definition = context.newRestfulGenericClient(baseURL).read().resource(StructureDefinition.class).withUrl(parts[0]).execute();
-						elemDef = definition.getSnapshot().getElementFirstRep();
-						return elemDef;
-					}
-				}
-				
-			}
-			//For internal URL
-			else{
-				if(parts[0].contains("DataElement")){
-					DataElement element = context.newRestfulGenericClient(baseURL).read().resource(DataElement.class).withId(resource).execute();
-					elemDef = element.getElementFirstRep();
-					return elemDef;
-				}else{
-					if(parts[0].contains("StructureDefinition")){
-						StructureDefinition definition = context.newRestfulGenericClient(baseURL).read().resource(StructureDefinition.class).withId(resource).execute();
-						elemDef = definition.getSnapshot().getElementFirstRep();
-						return elemDef;
-					}
-				}
-				
-			}
+			return definition.getFirst();
 		}
 		if(parts.length == 2){
 			//Assume 0 => Resource url, 1 => Element Definition path
-			IdType resource = new IdType(parts[0]);
-			//For absolute url
-			if(resource.isAbsolute()){
-				if(parts[0].contains("DataElement")){
-					DataElement element = context.newRestfulGenericClient(baseURL).read().resource(DataElement.class).withUrl(parts[0]).execute();
-					for(ElementDefinition def: element.getElement()){
-						//Look for Element Definition with path matching our param after #
-						if(def.getPath().equals(parts[1])){
-							//Found it!
-							elemDef = def;
-							return elemDef;
-						}
-					}
-				}else{
-					if(parts[0].contains("StructureDefinition")){
-						StructureDefinition definition = context.newRestfulGenericClient(baseURL).read().resource(StructureDefinition.class).withUrl(parts[0]).execute();
-						for(ElementDefinition def: definition.getSnapshot().getElement()){
-							//Look for Element Definition with path matching our param after #
-							if(def.getPath().equals(parts[1])){
-								//Found it!
-								elemDef = def;
-								return elemDef;
-							}
-						}
-					}
-				}
-				
-			}
-			//For internal URL
-			else{
-				if(parts[0].contains("DataElement")){
-					DataElement element = context.newRestfulGenericClient(baseURL).read().resource(DataElement.class).withId(resource).execute();
-					for(ElementDefinition def: element.getElement()){
-						//Look for Element Definition with path matching our param after #
-						if(def.getPath().equals(parts[1])){
-							//Found it!
-							elemDef = def;
-							return elemDef;
-						}
-					}
-				}else{
-					if(parts[0].contains("StructureDefinition")){
-						StructureDefinition definition = context.newRestfulGenericClient(baseURL).read().resource(StructureDefinition.class).withId(resource).execute();
-						for(ElementDefinition def: definition.getSnapshot().getElement()){
-							//Look for Element Definition with path matching our param after #
-							if(def.getPath().equals(parts[1])){
-								//Found it!
-								elemDef = def;
-								return elemDef;
-							}
-						}
-					}
-				}
-				
-			}
+			return definition.getByPath(parts[1]);
 		}
 
-		return elemDef;
+		return null;
+	}
+	
+	/**
+	 * Asynchronous variant of {@link #resolveElementDefinitionURI(String)}
+	 * @param uri
+	 * @return completes with the Element Definition or null
+	 */
+	public CompletableFuture<ElementDefinition> resolveElementDefinitionURIAsync(String uri){
+		return CompletableFuture.supplyAsync(() -> this.resolveElementDefinitionURI(uri), getExecutor());
+	}
+	
+	/**
+	 * Fetches the DataElement or StructureDefinition (snapshot) at the given URL, each one only once while it is
+	 * held in the terminology cache
+	 * @param resourceURL absolute or internal URL
+	 * @return its Element Definitions, or null if the URL points to neither
+	 */
+	private IndexedDefinition fetchElementDefinitions(String resourceURL){
+		IdType resource = new IdType(resourceURL);
+		String key = this.getDefinitionKey(resourceURL);
+		if(resourceURL.contains("DataElement")){
+			IndexedDefinition cached = this.terminologyCache.getDefinition("DataElement "+key);
+			if(cached != null){
+				return cached;
+			}
+			DataElement element = singleFlight(this.getFlightKey("DataElement", resourceURL),
+					() -> this.readThroughStore(key, resourceURL, DataElement.class, () -> resource.isAbsolute()
+							? this.getClient().read().resource(DataElement.class).withUrl(resourceURL)
+							: this.getClient().read().resource(DataElement.class).withId(resource), UnaryOperator.identity()));
+			if(element == null){
+				return null;
+			}
+			IndexedDefinition definition = new IndexedDefinition(element.getElement());
+			this.terminologyCache.putDefinition("DataElement "+key, definition);
+			return definition;
+		}
+		if(resourceURL.contains("StructureDefinition")){
+			IndexedDefinition cached = this.terminologyCache.getDefinition("StructureDefinition "+key);
+			if(cached != null){
+				return cached;
+			}
+			StructureDefinition structure = singleFlight(this.getFlightKey("StructureDefinition", resourceURL),
+					() -> this.readThroughStore(key, resourceURL, StructureDefinition.class, () -> resource.isAbsolute()
+							? this.getClient().read().resource(StructureDefinition.class).withUrl(resourceURL)
+							: this.getClient().read().resource(StructureDefinition.class).withId(resource), UnaryOperator.identity()));
+			if(structure == null){
+				return null;
+			}
+			IndexedDefinition definition = new IndexedDefinition(structure.getSnapshot().getElement());
+			this.terminologyCache.putDefinition("StructureDefinition "+key, definition);
+			return definition;
+		}
+		return null;
 	}
 }
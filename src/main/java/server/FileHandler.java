@@ -4,21 +4,36 @@
  ******************************************************************************/
 package server;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import converter.ConversionOutcome;
+import emxModel.EMXTableWriter;
+
 public class FileHandler {
 	
 	final static Logger logger = LoggerFactory.getLogger(FileHandler.class);
@@ -51,16 +66,33 @@ public class FileHandler {
 	}
 	
 	
-	private static void writeStreamToFile(ByteArrayOutputStream baos, String filename) throws IOException {
-		//Get static file Location
-		String dirPath = getEMXFilesLocation();
-		String filePath = dirPath+filename;
-		logger.debug("Writing file to "+ filePath);
-
-		//Write data
-		OutputStream outputStream = new FileOutputStream(filePath);
-		baos.writeTo(outputStream);
-		
+	/**
+	 * Writes a zip file to the given OutputStream
+	 */
+	interface ArchiveWriter {
+		void write(OutputStream out) throws IOException;
+	}
+	
+	/**
+	 * Writes a zip file under the given id. The file only appears under its id once it is complete.
+	 * @param id
+	 * @param writer
+	 * @throws IOException if writing fails, nothing is left behind then
+	 */
+	private static void writeFile(String id, ArchiveWriter writer) throws IOException {
+		File partial = new File(getEMXFilesLocation() + id + ".part");
+		logger.debug("Writing file to " + partial.getPath());
+		try (OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(partial))) {
+			writer.write(outputStream);
+		} catch (IOException | RuntimeException e) {
+			partial.delete();
+			throw e;
+		}
+		File file = new File(getEMXFilesLocation() + id + ".zip");
+		if (!partial.renameTo(file) && !(file.delete() && partial.renameTo(file))) {
+			partial.delete();
+			throw new IOException("Failed to rename " + partial.getPath());
+		}
 	}
 	
 
@@ -68,13 +100,105 @@ public class FileHandler {
 		
 		String is = (new Integer(emxTables.hashCode())).toString();
 		try {
-			writeStreamToFile(prepareEMXFile(emxTables),is+".zip");
+			writeFile(is, out -> EMXTableWriter.writeZip(emxTables, out));
 		} catch (IOException e) {
 			logger.error("Error writing generated EMX file",e);
 		}
 		return is;
 	}
 	
+	/**
+	 * Like {@link #saveAsFile(Map)}, but the zip file is only created once per outcome, later calls return the
+	 * id of that file. If the tables of the outcome were not generated they are written straight from the model.
+	 * @param outcome
+	 * @return id of the written file
+	 */
+	static String saveAsFile(ConversionOutcome outcome){
+		File archive = outcome.getArchiveFile();
+		if(archive != null && archive.exists()){
+			return archive.getName().substring(0, archive.getName().length() - ".zip".length());
+		}
+		String is = outcome.getEmxTables() != null ? Integer.toString(outcome.getEmxTables().hashCode())
+				: UUID.randomUUID().toString();
+		try {
+			writeFile(is, outcome::writeArchive);
+			outcome.setArchiveFile(new File(getEMXFilesLocation() + is + ".zip"));
+		} catch (IOException e) {
+			logger.error("Error writing generated EMX file",e);
+		}
+		return is;
+	}
+	
+	/**
+	 * Reads the tables of a written zip file for display, at most maxRows rows (after the header) per table
+	 * @param id
+	 * @param maxRows
+	 * @param truncated Names of the tables that have more rows are added here
+	 * @return the tables in the order of the file
+	 * @throws IOException
+	 */
+	static List<TableResult> readTables(String id, int maxRows, List<String> truncated) throws IOException {
+		List<TableResult> tables = new ArrayList<TableResult>();
+		try (ZipInputStream zis = new ZipInputStream(new BufferedInputStream(new FileInputStream(getEMXFilesLocation() + id + ".zip")))) {
+			ZipEntry entry;
+			while ((entry = zis.getNextEntry()) != null) {
+				String name = entry.getName().endsWith(".tsv")
+						? entry.getName().substring(0, entry.getName().length() - ".tsv".length()) : entry.getName();
+				// Ends with the entry, the stream is closed with the zip file
+				BufferedReader reader = new BufferedReader(new InputStreamReader(zis, StandardCharsets.UTF_8));
+				ArrayList<String[]> rows = new ArrayList<String[]>();
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (rows.size() > maxRows) {
+						truncated.add(name);
+						break;
+					}
+					rows.add(line.split("\\t"));
+				}
+				tables.add(new TableResult(name, rows));
+			}
+		}
+		return tables;
+	}
+	
+	/**
+	 * Writes a table while the zip file is written
+	 */
+	interface TableWriter {
+		void write(Writer out) throws IOException;
+	}
+	
+	/**
+	 * Like {@link #saveAsFile(Map)}, but one table is written by the given writer straight into the zip file, so
+	 * its rows never have to be kept in memory. The file only appears under its id once it is complete.
+	 * @param emxTables Tables written as they are, a table named like the streamed one is left out
+	 * @param streamedTable Name of the streamed table
+	 * @param writer
+	 * @return id of the written file
+	 * @throws IOException if writing fails, nothing is left behind then
+	 */
+	static String saveAsFile(Map<String, String> emxTables, String streamedTable, TableWriter writer) throws IOException {
+		String id = emxTables.hashCode() + "-" + UUID.randomUUID().toString();
+		writeFile(id, stream -> {
+			ZipOutputStream zos = new ZipOutputStream(stream);
+			Writer out = new BufferedWriter(new OutputStreamWriter(zos, StandardCharsets.UTF_8));
+			for (String s : emxTables.keySet()) {
+				if (!s.equals(streamedTable)) {
+					zos.putNextEntry(new ZipEntry(s + ".tsv"));
+					out.write(emxTables.get(s));
+					out.flush();
+					zos.closeEntry();
+				}
+			}
+			zos.putNextEntry(new ZipEntry(streamedTable + ".tsv"));
+			writer.write(out);
+			out.flush();
+			zos.closeEntry();
+			zos.finish();
+		});
+		return id;
+	}
+	
 	public static String getEMXFilesLocation(){
 		//Get static file Location
 		URL dokuURL = Main.class.getResource("/public/fhir2emx/apiDoku.html");
@@ -93,15 +217,8 @@ public class FileHandler {
 		
 		
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		try (ZipOutputStream zos = new ZipOutputStream(baos)) {
-
-			//Iterate over all table names and add them to zip Stream
-			for (String s : emxTables.keySet()) {
-				ZipEntry entry = new ZipEntry(s+".tsv");
-				zos.putNextEntry(entry);
-				zos.write(emxTables.get(s).getBytes());
-				zos.closeEntry();
-			}
+		try {
+			EMXTableWriter.writeZip(emxTables, baos);
 		} catch (IOException ioe) {
 			ioe.printStackTrace();
 		}
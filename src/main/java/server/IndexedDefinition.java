@@ -0,0 +1,54 @@
+/*******************************************************************************
+ * Copyright (c) 2017 - IT Center for Clinical Research, University of Luebeck
+ * Noemi Deppenwiese, Hannes Ulrich
+ ******************************************************************************/
+package server;
+
+import java.util.HashMap;
+import java.util.List;
+
+import org.hl7.fhir.dstu3.model.ElementDefinition;
+
+/**
+ * Element Definitions of a fetched DataElement or StructureDefinition snapshot, indexed by path.
+ */
+public class IndexedDefinition {
+
+	private List<ElementDefinition> elements;
+
+	private HashMap<String, ElementDefinition> byPath;
+
+	public IndexedDefinition(List<ElementDefinition> elements) {
+		this.elements = elements;
+		this.byPath = new HashMap<String, ElementDefinition>();
+		for (ElementDefinition def : elements) {
+			// Keep the first occurrence like a linear search would
+			if (def.getPath() != null) {
+				this.byPath.putIfAbsent(def.getPath(), def);
+			}
+		}
+	}
+
+	/**
+	 * @return the first Element Definition or null if there is none
+	 */
+	public ElementDefinition getFirst() {
+		if (this.elements.isEmpty()) {
+			return null;
+		}
+		return this.elements.get(0);
+	}
+
+	/**
+	 * @param path
+	 * @return the first Element Definition with the given path or null
+	 */
+	public ElementDefinition getByPath(String path) {
+		return this.byPath.get(path);
+	}
+
+	public int size() {
+		return this.elements.size();
+	}
+
+}
@@ -0,0 +1,54 @@
+/*******************************************************************************
+ * Copyright (c) 2017 - IT Center for Clinical Research, University of Luebeck
+ * Noemi Deppenwiese, Hannes Ulrich
+ ******************************************************************************/
+package server;
+
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts request durations in fixed buckets, can be updated concurrently without locking.
+ */
+public class LatencyHistogram {
+
+	/**
+	 * Upper bounds of the buckets, the last bucket takes everything above
+	 */
+	private final static long[] BOUNDS_MILLIS = { 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000 };
+
+	private final AtomicLongArray counts = new AtomicLongArray(BOUNDS_MILLIS.length + 1);
+
+	private final LongAdder totalMillis = new LongAdder();
+
+	private final LongAdder count = new LongAdder();
+
+	public void record(long millis) {
+		int bucket = 0;
+		while (bucket < BOUNDS_MILLIS.length && millis > BOUNDS_MILLIS[bucket]) {
+			bucket++;
+		}
+		this.counts.incrementAndGet(bucket);
+		this.totalMillis.add(millis);
+		this.count.increment();
+	}
+
+	/**
+	 * @return bucket label ("upTo10ms" ... "over10000ms") -> number of requests, in ascending order
+	 */
+	public LinkedHashMap<String, Long> getBuckets() {
+		LinkedHashMap<String, Long> buckets = new LinkedHashMap<String, Long>();
+		for (int i = 0; i < BOUNDS_MILLIS.length; i++) {
+			buckets.put("upTo" + BOUNDS_MILLIS[i] + "ms", this.counts.get(i));
+		}
+		buckets.put("over" + BOUNDS_MILLIS[BOUNDS_MILLIS.length - 1] + "ms", this.counts.get(BOUNDS_MILLIS.length));
+		return buckets;
+	}
+
+	public double getMeanMillis() {
+		long n = this.count.sum();
+		return n == 0 ? 0 : (double) this.totalMillis.sum() / n;
+	}
+
+}
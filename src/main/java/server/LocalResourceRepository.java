@@ -0,0 +1,614 @@
+/*******************************************************************************
+ * Copyright (c) 2017 - IT Center for Clinical Research, University of Luebeck
+ * Noemi Deppenwiese, Hannes Ulrich
+ ******************************************************************************/
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import org.hl7.fhir.dstu3.model.CodeSystem;
+import org.hl7.fhir.dstu3.model.CodeSystem.CodeSystemContentMode;
+import org.hl7.fhir.dstu3.model.CodeSystem.ConceptDefinitionComponent;
+import org.hl7.fhir.dstu3.model.IdType;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.hl7.fhir.dstu3.model.ValueSet;
+import org.hl7.fhir.dstu3.model.ValueSet.ConceptReferenceComponent;
+import org.hl7.fhir.dstu3.model.ValueSet.ConceptSetComponent;
+import org.hl7.fhir.dstu3.model.ValueSet.ValueSetExpansionComponent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import ca.uhn.fhir.context.FhirContext;
+
+/**
+ * Questionnaires, ValueSets, CodeSystems, DataElements and StructureDefinitions read from local FHIR NPM
+ * packages (.tgz) and from directories of resource, Bundle and NDJSON files, so conversions can run without a
+ * FHIR server.
+ * <p>
+ * On startup all sources are scanned once and an index of canonical URLs and ids is built, only the few
+ * fields needed for it are read. Resource bodies are loaded and parsed when they are requested. Sources given
+ * first take precedence if the same URL or id is found more than once.
+ */
+public class LocalResourceRepository {
+
+	final static Logger logger = LoggerFactory.getLogger(LocalResourceRepository.class);
+
+	/**
+	 * Number of raw resource bodies kept in memory, mainly to avoid unpacking packages again
+	 */
+	public final static int DEFAULT_BODY_CACHE_ENTRIES = 200;
+
+	private final static Set<String> INDEXED_TYPES = new LinkedHashSet<String>(Arrays.asList("Questionnaire",
+			"ValueSet", "CodeSystem", "DataElement", "StructureDefinition"));
+
+	private final static int TAR_BLOCK_SIZE = 512;
+
+	private static LocalResourceRepository instance;
+
+	private FhirContext context;
+
+	/**
+	 * "Type url" and "Type url|version" -> location
+	 */
+	private HashMap<String, Location> byUrl;
+
+	/**
+	 * "Type/id" -> location
+	 */
+	private HashMap<String, Location> byId;
+
+	private ExpiringLRUCache<Location, String> bodies;
+
+	/**
+	 * Bundle location -> body of the resource of each entry, null for entries without
+	 */
+	private ExpiringLRUCache<Location, List<String>> bundleEntries;
+
+	private int resources;
+
+	private LocalResourceRepository(FhirContext context) {
+		this.context = context;
+		this.byUrl = new HashMap<String, Location>();
+		this.byId = new HashMap<String, Location>();
+		this.bodies = new ExpiringLRUCache<Location, String>(DEFAULT_BODY_CACHE_ENTRIES, 0);
+		this.bundleEntries = new ExpiringLRUCache<Location, List<String>>(DEFAULT_BODY_CACHE_ENTRIES, 0);
+	}
+
+	/**
+	 * Indexes the given sources and makes the repository available through {@link #getInstance()}. Sources that
+	 * can not be read are logged and left out.
+	 * @param context
+	 * @param sources .tgz packages, .json/.ndjson files or directories containing them
+	 * @return the new repository
+	 */
+	public static synchronized LocalResourceRepository open(FhirContext context, List<File> sources) {
+		LocalResourceRepository repository = new LocalResourceRepository(context);
+		for (File source : sources) {
+			try {
+				repository.index(source);
+			} catch (IOException e) {
+				logger.error("Unable to read local FHIR resources from " + source, e);
+			}
+		}
+		logger.info("Indexed " + repository.resources + " local FHIR resources from " + sources);
+		instance = repository;
+		return instance;
+	}
+
+	/**
+	 * @return the repository or null if no local sources were configured
+	 */
+	public static synchronized LocalResourceRepository getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @return number of indexed resources
+	 */
+	public int size() {
+		return this.resources;
+	}
+
+	/**
+	 * @param type
+	 * @param reference canonical URL (optionally with |version), absolute or internal URL, or Type/id
+	 * @return true if the reference points to an indexed resource
+	 */
+	public boolean contains(Class<? extends Resource> type, String reference) {
+		return this.locate(type, reference) != null;
+	}
+
+	/**
+	 * @param type
+	 * @param reference canonical URL (optionally with |version), absolute or internal URL, or Type/id
+	 * @return a newly parsed instance of the resource, or null if it is not indexed or can not be loaded
+	 */
+	public <T extends Resource> T find(Class<T> type, String reference) {
+		Location location = this.locate(type, reference);
+		if (location == null) {
+			return null;
+		}
+		try {
+			String body;
+			if (location.bundleIndex < 0) {
+				body = this.bodies.get(location);
+				if (body == null) {
+					body = this.load(location);
+					this.bodies.put(location, body);
+				}
+			} else {
+				List<String> entries = this.bundleEntries.get(location);
+				if (entries == null) {
+					entries = splitBundle(this.load(location));
+					this.bundleEntries.put(location, entries);
+				}
+				body = entries.get(location.bundleIndex);
+			}
+			Resource resource = this.context.newJsonParser().parseResource(type, body);
+			return type.isInstance(resource) ? type.cast(resource) : null;
+		} catch (Exception e) {
+			logger.error("Unable to load local " + type.getSimpleName() + " " + reference + " from " + location.file, e);
+			return null;
+		}
+	}
+
+	private Location locate(Class<? extends Resource> type, String reference) {
+		if (reference == null) {
+			return null;
+		}
+		String typeName = type.getSimpleName();
+		Location location = this.byUrl.get(typeName + " " + reference);
+		if (location == null) {
+			IdType id = new IdType(reference);
+			if (typeName.equals(id.getResourceType()) && id.hasIdPart()) {
+				location = this.byId.get(typeName + "/" + id.getIdPart());
+			}
+		}
+		return location;
+	}
+
+	/**
+	 * Expands the ValueSet from its enumerated concepts and the complete CodeSystems of this repository.
+	 * @param valueSet
+	 * @return an expanded copy, or null if the compose uses filters, imports other ValueSets or references
+	 *         CodeSystems not available here
+	 */
+	public ValueSet expand(ValueSet valueSet) {
+		if (!valueSet.hasCompose()) {
+			return null;
+		}
+		LinkedHashMap<String, String[]> included = new LinkedHashMap<String, String[]>();
+		for (ConceptSetComponent include : valueSet.getCompose().getInclude()) {
+			if (!this.collect(include, included)) {
+				return null;
+			}
+		}
+		LinkedHashMap<String, String[]> excluded = new LinkedHashMap<String, String[]>();
+		for (ConceptSetComponent exclude : valueSet.getCompose().getExclude()) {
+			if (!this.collect(exclude, excluded)) {
+				return null;
+			}
+		}
+		included.keySet().removeAll(excluded.keySet());
+
+		ValueSet expanded = valueSet.copy();
+		ValueSetExpansionComponent expansion = expanded.getExpansion();
+		expansion.setIdentifier("urn:uuid:" + UUID.randomUUID());
+		expansion.setTimestamp(new Date());
+		expansion.setTotal(included.size());
+		for (String[] concept : included.values()) {
+			expansion.addContains().setSystem(concept[0]).setCode(concept[1]).setDisplay(concept[2]);
+		}
+		return expanded;
+	}
+
+	/**
+	 * @param conceptSet include or exclude of a ValueSet compose
+	 * @param concepts system|code -> {system, code, display}
+	 * @return false if the concept set can not be expanded locally
+	 */
+	private boolean collect(ConceptSetComponent conceptSet, LinkedHashMap<String, String[]> concepts) {
+		if (conceptSet.hasFilter() || conceptSet.hasValueSet() || !conceptSet.hasSystem()) {
+			return false;
+		}
+		String system = conceptSet.getSystem();
+		if (conceptSet.hasConcept()) {
+			for (ConceptReferenceComponent concept : conceptSet.getConcept()) {
+				concepts.put(system + "|" + concept.getCode(), new String[] { system, concept.getCode(), concept.getDisplay() });
+			}
+			return true;
+		}
+		CodeSystem codeSystem = this.find(CodeSystem.class, TerminologyCache.canonicalKey(system, conceptSet.getVersion()));
+		if (codeSystem == null && conceptSet.hasVersion()) {
+			codeSystem = this.find(CodeSystem.class, system);
+		}
+		if (codeSystem == null || codeSystem.getContent() != CodeSystemContentMode.COMPLETE) {
+			return false;
+		}
+		this.collect(system, codeSystem.getConcept(), concepts);
+		return true;
+	}
+
+	private void collect(String system, List<ConceptDefinitionComponent> definitions, LinkedHashMap<String, String[]> concepts) {
+		for (ConceptDefinitionComponent definition : definitions) {
+			concepts.put(system + "|" + definition.getCode(), new String[] { system, definition.getCode(), definition.getDisplay() });
+			this.collect(system, definition.getConcept(), concepts);
+		}
+	}
+
+	/*
+	 * Indexing
+	 */
+
+	private void index(File source) throws IOException {
+		if (source.isDirectory()) {
+			List<File> files;
+			try (Stream<Path> paths = Files.walk(source.toPath())) {
+				files = paths.filter(Files::isRegularFile).map(Path::toFile).sorted()
+						.collect(Collectors.toList());
+			}
+			for (File file : files) {
+				try {
+					this.indexFile(file);
+				} catch (IOException | IllegalStateException e) {
+					logger.warn("Skipping unreadable file " + file, e);
+				}
+			}
+		} else {
+			this.indexFile(source);
+		}
+	}
+
+	private void indexFile(File file) throws IOException {
+		String name = file.getName().toLowerCase();
+		if (name.endsWith(".tgz") || name.endsWith(".tar.gz")) {
+			this.indexPackage(file);
+		} else if (name.endsWith(".ndjson")) {
+			this.indexNdjson(file);
+		} else if (name.endsWith(".json")) {
+			try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+				this.indexBody(in, new Location(file, null, -1, -1));
+			}
+		}
+	}
+
+	/**
+	 * NPM packages keep one resource per file below package/, examples and other sub folders are left out.
+	 */
+	private void indexPackage(File file) throws IOException {
+		try (TarReader tar = new TarReader(file)) {
+			String entry;
+			while ((entry = tar.next()) != null) {
+				String name = entry.startsWith("./") ? entry.substring(2) : entry;
+				if (!name.startsWith("package/") || name.indexOf('/', "package/".length()) >= 0
+						|| !name.endsWith(".json") || name.equals("package/package.json")
+						|| name.equals("package/.index.json")) {
+					continue;
+				}
+				this.indexBody(new ByteArrayInputStream(tar.read()), new Location(file, entry, -1, -1));
+			}
+		}
+	}
+
+	private void indexNdjson(File file) throws IOException {
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+			long offset = 0;
+			byte[] line;
+			while ((line = readLine(in)) != null) {
+				if (!new String(line, StandardCharsets.UTF_8).trim().isEmpty()) {
+					this.indexBody(new ByteArrayInputStream(line), new Location(file, null, offset, -1));
+				}
+				offset += line.length;
+			}
+		}
+	}
+
+	/**
+	 * Reads the resource type, id, url and version of a resource, or of every entry of a Bundle.
+	 */
+	private void indexBody(InputStream in, Location location) throws IOException {
+		JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+		reader.setLenient(true);
+		List<String[]> entries = new ArrayList<String[]>();
+		String[] header = readHeader(reader, entries);
+		if ("Bundle".equals(header[0])) {
+			for (int i = 0; i < entries.size(); i++) {
+				if (entries.get(i) != null) {
+					this.add(entries.get(i), new Location(location.file, location.entry, location.offset, i));
+				}
+			}
+		} else {
+			this.add(header, location);
+		}
+	}
+
+	private void add(String[] header, Location location) {
+		String type = header[0];
+		if (type == null || !INDEXED_TYPES.contains(type)) {
+			return;
+		}
+		this.resources++;
+		if (header[1] != null) {
+			this.byId.putIfAbsent(type + "/" + header[1], location);
+		}
+		if (header[2] != null) {
+			this.byUrl.putIfAbsent(type + " " + header[2], location);
+			if (header[3] != null) {
+				this.byUrl.putIfAbsent(type + " " + TerminologyCache.canonicalKey(header[2], header[3]), location);
+			}
+		}
+	}
+
+	/**
+	 * @param reader positioned before a resource object
+	 * @param entries if not null, receives the headers of the resources in entry[], null for entries without
+	 * @return resourceType, id, url and version, each may be null
+	 */
+	private static String[] readHeader(JsonReader reader, List<String[]> entries) throws IOException {
+		String[] header = new String[4];
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			int field = Arrays.asList("resourceType", "id", "url", "version").indexOf(name);
+			if (field >= 0 && reader.peek() == JsonToken.STRING) {
+				header[field] = reader.nextString();
+			} else if ("entry".equals(name) && entries != null && reader.peek() == JsonToken.BEGIN_ARRAY) {
+				reader.beginArray();
+				while (reader.hasNext()) {
+					entries.add(readEntry(reader));
+				}
+				reader.endArray();
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return header;
+	}
+
+	private static String[] readEntry(JsonReader reader) throws IOException {
+		String[] header = null;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			if ("resource".equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+				// Bundles nested in Bundles are not indexed
+				header = readHeader(reader, null);
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return header;
+	}
+
+	/*
+	 * Loading
+	 */
+
+	private String load(Location location) throws IOException {
+		if (location.entry != null) {
+			try (TarReader tar = new TarReader(location.file)) {
+				String entry;
+				while ((entry = tar.next()) != null) {
+					if (entry.equals(location.entry)) {
+						return new String(tar.read(), StandardCharsets.UTF_8);
+					}
+				}
+			}
+			throw new IOException("Entry " + location.entry + " no longer exists");
+		}
+		if (location.offset >= 0) {
+			try (FileInputStream data = new FileInputStream(location.file)) {
+				data.getChannel().position(location.offset);
+				byte[] line = readLine(new BufferedInputStream(data));
+				if (line == null) {
+					throw new EOFException("Line at " + location.offset + " no longer exists");
+				}
+				return new String(line, StandardCharsets.UTF_8);
+			}
+		}
+		return new String(Files.readAllBytes(location.file.toPath()), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Splits a Bundle once, so looking up its entries one by one only parses the requested resource.
+	 * @return body of the resource of each entry, null for entries without, in the order of the index
+	 */
+	private static List<String> splitBundle(String body) {
+		List<String> entries = new ArrayList<String>();
+		JsonElement entry = new JsonParser().parse(body).getAsJsonObject().get("entry");
+		if (entry != null && entry.isJsonArray()) {
+			for (JsonElement element : (JsonArray) entry) {
+				JsonElement resource = element.isJsonObject() ? ((JsonObject) element).get("resource") : null;
+				entries.add(resource != null && resource.isJsonObject() ? resource.toString() : null);
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * @return the next line including its line break, or null at the end of the stream
+	 */
+	private static byte[] readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != -1) {
+			line.write(b);
+			if (b == '\n') {
+				break;
+			}
+		}
+		return line.size() == 0 ? null : line.toByteArray();
+	}
+
+	/**
+	 * Where to find a resource: a file, an entry of a package, a line of an NDJSON file, and optionally an entry
+	 * of the Bundle found there.
+	 */
+	private static class Location {
+
+		private final File file;
+
+		private final String entry;
+
+		private final long offset;
+
+		private final int bundleIndex;
+
+		Location(File file, String entry, long offset, int bundleIndex) {
+			this.file = file;
+			this.entry = entry;
+			this.offset = offset;
+			this.bundleIndex = bundleIndex;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Location)) {
+				return false;
+			}
+			Location other = (Location) obj;
+			// Bodies of all entries of one Bundle are the same, so the bundle index is left out
+			return this.file.equals(other.file) && this.offset == other.offset
+					&& (this.entry == null ? other.entry == null : this.entry.equals(other.entry));
+		}
+
+		@Override
+		public int hashCode() {
+			return this.file.hashCode() * 31 + (this.entry == null ? 0 : this.entry.hashCode()) + (int) this.offset;
+		}
+	}
+
+	/**
+	 * Minimal reader for the gzipped tar files of NPM packages, only regular files are returned.
+	 */
+	private static class TarReader implements AutoCloseable {
+
+		private final InputStream in;
+
+		private long remaining;
+
+		private long padding;
+
+		TarReader(File file) throws IOException {
+			this.in = new BufferedInputStream(new GZIPInputStream(new FileInputStream(file), 64 * 1024));
+		}
+
+		/**
+		 * Skips the rest of the current entry
+		 * @return name of the next file entry or null at the end of the archive
+		 */
+		String next() throws IOException {
+			String longName = null;
+			while (true) {
+				this.skip(this.remaining + this.padding);
+				this.remaining = 0;
+				this.padding = 0;
+				byte[] header = new byte[TAR_BLOCK_SIZE];
+				if (!this.readFully(header) || header[0] == 0) {
+					return null;
+				}
+				String sizeField = field(header, 124, 12).trim();
+				long size = sizeField.isEmpty() ? 0 : Long.parseLong(sizeField, 8);
+				this.remaining = size;
+				this.padding = (TAR_BLOCK_SIZE - size % TAR_BLOCK_SIZE) % TAR_BLOCK_SIZE;
+				char type = (char) header[156];
+				if (type == 'L') {
+					// GNU long name, applies to the following entry
+					longName = new String(this.read(), StandardCharsets.UTF_8).trim();
+					continue;
+				}
+				if (type != '0' && type != 0) {
+					continue;
+				}
+				if (longName != null) {
+					return longName;
+				}
+				String prefix = field(header, 345, 155);
+				String name = field(header, 0, 100);
+				return prefix.isEmpty() ? name : prefix + "/" + name;
+			}
+		}
+
+		/**
+		 * @return content of the current entry
+		 */
+		byte[] read() throws IOException {
+			byte[] content = new byte[(int) this.remaining];
+			if (!this.readFully(content)) {
+				throw new EOFException("Truncated package");
+			}
+			this.remaining = 0;
+			return content;
+		}
+
+		private boolean readFully(byte[] buffer) throws IOException {
+			int read = 0;
+			while (read < buffer.length) {
+				int n = this.in.read(buffer, read, buffer.length - read);
+				if (n < 0) {
+					return false;
+				}
+				read += n;
+			}
+			return true;
+		}
+
+		private void skip(long bytes) throws IOException {
+			while (bytes > 0) {
+				long skipped = this.in.skip(bytes);
+				if (skipped <= 0) {
+					if (this.in.read() < 0) {
+						return;
+					}
+					skipped = 1;
+				}
+				bytes -= skipped;
+			}
+		}
+
+		private static String field(byte[] header, int offset, int length) {
+			int end = offset;
+			while (end < offset + length && header[end] != 0) {
+				end++;
+			}
+			return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.in.close();
+		}
+	}
+
+}
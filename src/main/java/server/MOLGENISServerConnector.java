@@ -6,6 +6,7 @@ package server;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.ConnectException;
 import java.util.Map;
@@ -21,7 +22,11 @@ import org.apache.http.client.methods.HttpPost;
 import org.apache.http.conn.ConnectTimeoutException;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
+import org.apache.http.entity.mime.MIME;
 import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.entity.mime.content.AbstractContentBody;
+import org.apache.http.entity.mime.content.ContentBody;
+import org.apache.http.entity.mime.content.FileBody;
 import org.apache.http.impl.client.BasicResponseHandler;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
@@ -31,6 +36,8 @@ import org.slf4j.LoggerFactory;
 import com.google.gson.Gson;
 
 import JsonModels.Login;
+import converter.ConversionOutcome;
+import emxModel.EMXTableWriter;
 
 public class MOLGENISServerConnector {
 	
@@ -174,6 +181,10 @@ public class MOLGENISServerConnector {
 		return this.token != null;
 	}
 	
+	public String getMolgenisUrl(){
+		return this.molgenisUrl;
+	}
+	
 	public boolean serverAlive() throws IOException{
 		CloseableHttpClient client = HttpClients.createDefault();
 		
@@ -213,16 +224,31 @@ public class MOLGENISServerConnector {
 	
 	public int postEMXByFile(Map<String, String> emxTables){
 		
-		//Get tables as zip-Stream
+		//Write tables as zip-Stream while they are sent
 		
-		ByteArrayOutputStream baos = FileHandler.prepareEMXFile(emxTables);
-
+		return this.postArchive(new ArchiveBody(out -> EMXTableWriter.writeZip(emxTables, out)));
+	}
+	
+	/**
+	 * Posts the tables of the outcome, from its zip file if they were written before and zipped while they are
+	 * sent otherwise
+	 * @param outcome
+	 * @return status of the MOLGENIS response, 0 if there was none
+	 */
+	public int postEMXByFile(ConversionOutcome outcome){
+		if(outcome.getArchiveFile() != null){
+			return this.postArchive(new FileBody(outcome.getArchiveFile(), ContentType.create("multipart/form-data"), "emx.zip"));
+		}
+		return this.postArchive(new ArchiveBody(outcome::writeArchive));
+	}
+	
+	private int postArchive(ContentBody archive){
 		CloseableHttpClient client = HttpClients.createDefault();
 	    HttpPost httpPost = new HttpPost(this.molgenisUrl+"/plugin/importwizard/importFile/");
 	    
 	    HttpEntity entity = MultipartEntityBuilder
 	    	    .create()
-	    	    .addBinaryBody("file", baos.toByteArray(), ContentType.create("multipart/form-data"), "emx.zip")
+	    	    .addPart("file", archive)
 	    	    .build();
 	 
 	    httpPost.setEntity(entity);
@@ -275,4 +301,37 @@ public class MOLGENISServerConnector {
 	    
 	}
 
+	/**
+	 * Zip file that is written while it is sent, its length is unknown in advance
+	 */
+	private static class ArchiveBody extends AbstractContentBody {
+
+		private FileHandler.ArchiveWriter writer;
+
+		ArchiveBody(FileHandler.ArchiveWriter writer) {
+			super(ContentType.create("multipart/form-data"));
+			this.writer = writer;
+		}
+
+		@Override
+		public String getFilename() {
+			return "emx.zip";
+		}
+
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			this.writer.write(out);
+		}
+
+		@Override
+		public String getTransferEncoding() {
+			return MIME.ENC_BINARY;
+		}
+
+		@Override
+		public long getContentLength() {
+			return -1;
+		}
+	}
+	
 }
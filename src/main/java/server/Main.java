@@ -7,25 +7,47 @@ package server;
 import static spark.Spark.get;
 import static spark.Spark.post;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.hl7.fhir.dstu3.model.QuestionnaireResponse;
 import org.hl7.fhir.dstu3.model.codesystems.IssueSeverity;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.gson.Gson;
 
+import JsonModels.BatchRequest;
+import JsonModels.BatchResponse;
+import JsonModels.BatchResult;
+import JsonModels.ConversionResponse;
+import JsonModels.DataExportRequest;
+import JsonModels.DataExportResponse;
 import JsonModels.Errors;
+import JsonModels.Statistics;
 import ca.uhn.fhir.context.FhirContext;
+import converter.BatchConverter;
 import converter.ConversionOutcome;
+import converter.ConversionSnapshot;
+import converter.DependencyPrefetcher;
 import converter.Issue;
 import converter.QuestionnaireConverter;
+import converter.ResponseExporter;
+import converter.StreamingQuestionnaireReader;
 import spark.ModelAndView;
 import spark.Spark;
 import spark.servlet.SparkApplication;
@@ -35,6 +57,12 @@ public class Main implements SparkApplication {
 	
 	final static String baseUrl = "fhir2emx";
 
+	final static int DEFAULT_BATCH_MAX_QUESTIONNAIRES = 1000;
+
+	final static int DEFAULT_EXPORT_PAGE_SIZE = 100;
+
+	final static int DEFAULT_PREVIEW_ROWS = 1000;
+
 	final static Logger logger = LoggerFactory.getLogger(Main.class);
 
 	private static FhirContext fhirContext;
@@ -56,6 +84,85 @@ public class Main implements SparkApplication {
 		// Create FhirContext once
 		fhirContext = FhirContext.forDstu3();
 
+		// Shared FHIR clients with pooled connections, pool settings can be overridden by system properties
+		FHIRClientRegistry.configure(fhirContext,
+				Integer.getInteger("fhir2emx.pool.maxTotal", FHIRClientRegistry.DEFAULT_POOL_MAX_TOTAL),
+				Integer.getInteger("fhir2emx.pool.maxPerRoute", FHIRClientRegistry.DEFAULT_POOL_MAX_PER_ROUTE),
+				Integer.getInteger("fhir2emx.pool.idleSeconds", FHIRClientRegistry.DEFAULT_IDLE_SECONDS));
+
+		// Timeouts, per server ones given as baseURL=connectMillis/readMillis,...
+		FHIRClientRegistry clients = FHIRClientRegistry.getInstance(fhirContext);
+		clients.setDefaultTimeouts(
+				Integer.getInteger("fhir2emx.http.connectTimeoutMillis", FHIRClientRegistry.DEFAULT_CONNECT_TIMEOUT_MILLIS),
+				Integer.getInteger("fhir2emx.http.readTimeoutMillis", FHIRClientRegistry.DEFAULT_READ_TIMEOUT_MILLIS));
+		clients.setTimeouts(System.getProperty("fhir2emx.http.timeouts"));
+
+		// Servers failing repeatedly are not asked for a while, conversions fall back right away
+		clients.configureCircuitBreakers(
+				Integer.getInteger("fhir2emx.breaker.failureThreshold", CircuitBreaker.DEFAULT_FAILURE_THRESHOLD),
+				Integer.getInteger("fhir2emx.breaker.openSeconds", CircuitBreaker.DEFAULT_OPEN_SECONDS),
+				Integer.getInteger("fhir2emx.breaker.slowCallMillis", CircuitBreaker.DEFAULT_SLOW_CALL_MILLIS));
+
+		// Questionnaires fetched for the preview are reused by the transform step
+		QuestionnaireCache.configure(
+				Integer.getInteger("fhir2emx.questionnaire.maxEntries", QuestionnaireCache.DEFAULT_MAX_ENTRIES),
+				Integer.getInteger("fhir2emx.questionnaire.ttlSeconds", QuestionnaireCache.DEFAULT_TTL_SECONDS));
+
+		// Expanded ValueSets are shared between conversions
+		TerminologyCache.configure(
+				Integer.getInteger("fhir2emx.terminology.maxEntries", TerminologyCache.DEFAULT_MAX_ENTRIES),
+				Integer.getInteger("fhir2emx.terminology.ttlSeconds", TerminologyCache.DEFAULT_TTL_SECONDS),
+				Integer.getInteger("fhir2emx.terminology.unresolvableTtlSeconds", TerminologyCache.DEFAULT_UNRESOLVABLE_TTL_SECONDS));
+
+		// ..and persisted so they survive a redeploy
+		TerminologyStore.open(fhirContext,
+				new File(System.getProperty("fhir2emx.store.dir", System.getProperty("java.io.tmpdir") + File.separator + "fhir2emx")),
+				Long.getLong("fhir2emx.store.maxBytes", TerminologyStore.DEFAULT_MAX_BYTES),
+				Long.getLong("fhir2emx.store.revalidateSeconds", TerminologyStore.DEFAULT_REVALIDATE_SECONDS));
+
+		// Local FHIR packages and Bundle/NDJSON directories are consulted before any server
+		String localSources = System.getProperty("fhir2emx.local.sources");
+		if (localSources != null && !localSources.isEmpty()) {
+			List<File> sources = new ArrayList<File>();
+			for (String source : localSources.split(File.pathSeparator)) {
+				sources.add(new File(source));
+			}
+			LocalResourceRepository.open(fhirContext, sources);
+		}
+		FHIRResourceFetcher.setOffline(Boolean.getBoolean("fhir2emx.offline"));
+
+		// Number of concurrent requests used to resolve the dependencies of a questionnaire
+		DependencyPrefetcher.setDefaultParallelism(
+				Integer.getInteger("fhir2emx.prefetch.parallelism", DependencyPrefetcher.DEFAULT_PARALLELISM));
+		DependencyPrefetcher.setBatchMode(Boolean.getBoolean("fhir2emx.prefetch.batch"),
+				Integer.getInteger("fhir2emx.prefetch.batchSize", FHIRResourceFetcher.DEFAULT_BATCH_SIZE));
+
+		// Questionnaires converted at the same time by a batch request
+		BatchConverter.setDefaultWorkers(
+				Integer.getInteger("fhir2emx.batch.workers", BatchConverter.getDefaultWorkers()));
+
+		// Finished conversions, identical inputs are not converted again
+		ConversionResultCache.configure(
+				Integer.getInteger("fhir2emx.results.maxEntries", ConversionResultCache.DEFAULT_MAX_ENTRIES),
+				Integer.getInteger("fhir2emx.results.ttlSeconds", ConversionResultCache.DEFAULT_TTL_SECONDS));
+
+		// Snapshots of finished conversions, later versions of the same questionnaire are converted incrementally
+		ConversionSnapshotCache.configure(
+				Integer.getInteger("fhir2emx.incremental.maxEntries", ConversionSnapshotCache.DEFAULT_MAX_ENTRIES),
+				Integer.getInteger("fhir2emx.incremental.ttlSeconds", ConversionSnapshotCache.DEFAULT_TTL_SECONDS));
+
+		// Threads converting the top level items of one questionnaire in parallel, 1 converts them sequentially
+		QuestionnaireConverter.setParallelism(Integer.getInteger("fhir2emx.convert.parallelism", 1));
+
+		// Threads waiting on FHIR servers for asynchronous fetches
+		FHIRResourceFetcher.configureExecutor(
+				Integer.getInteger("fhir2emx.io.threads", FHIRResourceFetcher.DEFAULT_IO_THREADS),
+				Integer.getInteger("fhir2emx.io.queueCapacity", FHIRResourceFetcher.DEFAULT_IO_QUEUE_CAPACITY));
+
+		// Large ValueSets are expanded page by page
+		FHIRResourceFetcher.setExpansionPageSize(
+				Integer.getInteger("fhir2emx.expand.pageSize", FHIRResourceFetcher.DEFAULT_EXPANSION_PAGE_SIZE));
+
 		gson = new Gson();
 
 		Spark.staticFileLocation("public/");
@@ -102,7 +209,7 @@ public class Main implements SparkApplication {
 			
 			Errors errors = new Errors();
 
-			// Fetch Questionnaire again
+			// Fetch Questionnaire again, usually only revalidates the one cached for the preview
 			String fhir_url = req.queryParams("fhir-url");
 			String ques_id = req.queryParams("ques-id");
 
@@ -112,8 +219,9 @@ public class Main implements SparkApplication {
 			attributes.put("fhir_url", fhir_url);
 			attributes.put("ques_id", ques_id);
 
+			// Fetched while logging into MOLGENIS
 			FHIRResourceFetcher fetch = new FHIRResourceFetcher(fhirContext, fhir_url);
-			Questionnaire ques = fetch.fetchQuestionnaire(ques_id);
+			CompletableFuture<Questionnaire> pendingQuestionnaire = fetch.fetchQuestionnaireAsync(ques_id);
 
 			// Log into MOLGENIS
 			String molgenisUrl = req.queryParams("molg-url");
@@ -138,14 +246,11 @@ public class Main implements SparkApplication {
 				return new FreeMarkerEngine().render(new ModelAndView(attributes, "index.ftl.html"));
 			}
 
-			QuestionnaireConverter converter = new QuestionnaireConverter(ques, fetch, connector);
-			converter.convert();
-			ConversionOutcome outcome = converter.getOutcome(withTags);
+			Questionnaire ques = pendingQuestionnaire.get();
+			ConversionOutcome outcome = convert(ques, fetch, fhir_url, ques_id, connector, withTags);
 
-			Map<String, String> emxTables = outcome.getEmxTables();
-			
-			//Write file
-			String id = FileHandler.saveAsFile(emxTables);
+			//Write file, usually it was written by the conversion already
+			String id = FileHandler.saveAsFile(outcome);
 
 			attributes.put("upload", true);
 			
@@ -155,23 +260,9 @@ public class Main implements SparkApplication {
 
 			}
 			// Render fancy HTML tables
-			List<TableResult> tables = new ArrayList<TableResult>();
-			// For each table
-			for (String name : emxTables.keySet()) {
-				String[] rows = emxTables.get(name).split("\\r?\\n");
-				ArrayList<String[]> table = new ArrayList<String[]>();
-				// For each line
-				for (String line : rows) {
-					// add all entries
-					table.add(line.split("\\t"));
-				}
-
-				tables.add(new TableResult(name, table));
-			}
-
 			attributes.put("emx_id", id);
+			attributes.put("result_tables", previewTables(id, errors.issues));
 			attributes.put("errors", errors.issues);
-			attributes.put("result_tables", tables);
 
 			return new FreeMarkerEngine().render(new ModelAndView(attributes, "index.ftl.html"));
 		});
@@ -181,7 +272,7 @@ public class Main implements SparkApplication {
 
 			Map<String, Object> attributes = new HashMap<>();
 
-			// Fetch Questionnaire again
+			// Fetch Questionnaire again, usually only revalidates the one cached for the preview
 			String fhir_url = req.queryParams("fhir-url");
 			String ques_id = req.queryParams("ques-id");
 
@@ -194,37 +285,23 @@ public class Main implements SparkApplication {
 			//Get with tags
 			boolean withTags = (req.queryParams("with-tags") != null);
 			
-			QuestionnaireConverter converter = new QuestionnaireConverter(ques, fetch, null);
-			converter.convert();
-			ConversionOutcome outcome = converter.getOutcome(withTags);
+			ConversionOutcome outcome = convert(ques, fetch, fhir_url, ques_id, null, withTags);
 
-			if (!outcome.getIssues().isEmpty()) {
-
-				attributes.put("errors", outcome.getIssues());
-
-			}
-			Map<String, String> emxTables = outcome.getEmxTables();
+			// The outcome may be cached, its issues must not be changed
+			List<Issue> issues = new ArrayList<Issue>(outcome.getIssues());
 			
-			//Write file
-			String id = FileHandler.saveAsFile(emxTables);
+			//Write file, usually it was written by the conversion already
+			String id = FileHandler.saveAsFile(outcome);
 			attributes.put("emx_id", id);
 
 			// Render fancy HTML tables
-			List<TableResult> tables = new ArrayList<TableResult>();
-			// For each table
-			for (String name : emxTables.keySet()) {
-				String[] rows = emxTables.get(name).split("\\r?\\n");
-				ArrayList<String[]> table = new ArrayList<String[]>();
-				// For each line
-				for (String line : rows) {
-					// add all entries
-					table.add(line.split("\\t"));
-				}
+			attributes.put("result_tables", previewTables(id, issues));
 
-				tables.add(new TableResult(name, table));
-			}
+			if (!issues.isEmpty()) {
+
+				attributes.put("errors", issues);
 
-			attributes.put("result_tables", tables);
+			}
 
 			return new FreeMarkerEngine().render(new ModelAndView(attributes, "index.ftl.html"));
 		});
@@ -288,6 +365,28 @@ public class Main implements SparkApplication {
 			return null;
 		});
 
+		// Usage statistics of the shared FHIR clients and caches
+		get(baseUrl+"/api/stats", (req, res) -> {
+			Statistics stats = new Statistics();
+			stats.connectionPool = FHIRClientRegistry.getInstance(fhirContext).getPoolStatistics();
+			stats.servers = FHIRClientRegistry.getInstance(fhirContext).getServerStatistics();
+			stats.terminologyCache = TerminologyCache.getInstance().getStatistics();
+			stats.definitionCache = TerminologyCache.getInstance().getDefinitionStatistics();
+			stats.unresolvableCache = TerminologyCache.getInstance().getUnresolvableStatistics();
+			stats.questionnaireCache = QuestionnaireCache.getInstance().getStatistics();
+			stats.snapshotCache = ConversionSnapshotCache.getInstance().getStatistics();
+			stats.resultCache = ConversionResultCache.getInstance().getStatistics();
+			if (TerminologyStore.getInstance() != null) {
+				stats.terminologyStoreEntries = TerminologyStore.getInstance().size();
+			}
+			stats.coalescedFetches = FHIRResourceFetcher.getCoalescedFetches();
+			if (LocalResourceRepository.getInstance() != null) {
+				stats.localResources = LocalResourceRepository.getInstance().size();
+			}
+			res.type("application/json");
+			return stats;
+		}, new JsonTransformer());
+
 		post(baseUrl+"/api/convert", (req, res) -> {
 			logger.debug("Processing API convert request");
 			Errors errors = new Errors();
@@ -313,10 +412,11 @@ public class Main implements SparkApplication {
 
 				Questionnaire ques = null;
 				FHIRResourceFetcher fetch = null;
+				CompletableFuture<Questionnaire> pendingQuestionnaire = null;
 				try {
-					// Try to fetch Questionnaire
+					// Start fetching the Questionnaire, the MOLGENIS login below runs meanwhile
 					fetch = new FHIRResourceFetcher(fhirContext, request.serverbase);
-					ques = fetch.fetchQuestionnaire(request.questionnaireid);
+					pendingQuestionnaire = fetch.fetchQuestionnaireAsync(request.questionnaireid);
 				} catch (Exception e) {
 					res.status(404);
 					errors.issues.add(
@@ -324,39 +424,53 @@ public class Main implements SparkApplication {
 					res.type("application/json");
 					return errors;
 				}
-				// Questionnaire not found
-				if (ques == null) {
-					res.status(404);
-					errors.issues.add(
-							new Issue(IssueSeverity.FATAL, "serverbase,questionnaireid", "Questionnaire not found"));
-					res.type("application/json");
-					return errors;
-				}
 
-				// MOLGENIS
+				// MOLGENIS, failures are reported after those of the Questionnaire
 				MOLGENISServerConnector connector = null;
+				boolean loggedIn = false;
+				Issue molgenisIssue = null;
+				int molgenisStatus = 0;
 				// If MOLGENIS params exist, login
 				if (!(request.molgenisurl == null || request.molgenisuser == null || request.molgenispw == null)) {
 					logger.debug("Logging into MOLGENIS at "+request.molgenisurl);
 					// Login to MOLGENIS
 					connector = new MOLGENISServerConnector(request.molgenisurl);
 					if (!connector.serverAlive()) {
-						res.status(502);
-						errors.issues.add(new Issue(IssueSeverity.FATAL, "molgenisurl", "MOLGENIS not responding"));
-						res.type("application/json");
-						return errors;
+						molgenisStatus = 502;
+						molgenisIssue = new Issue(IssueSeverity.FATAL, "molgenisurl", "MOLGENIS not responding");
+					} else if (!connector.login(request.molgenisuser, request.molgenispw)) {
+						molgenisStatus = 401;
+						molgenisIssue = new Issue(IssueSeverity.FATAL, "molgenisuser,molgenispw", "MOLGENIS Login failed");
+					} else {
+						loggedIn = true;
 					}
-					if (!connector.login(request.molgenisuser, request.molgenispw)) {
-						res.status(401);
-						errors.issues.add(new Issue(IssueSeverity.FATAL, "molgenisuser,molgenispw", "MOLGENIS Login failed"));
-						res.type("application/json");
-						return errors;
+				}
+
+				try {
+					ques = pendingQuestionnaire.get();
+				} catch (ExecutionException e) {
+					logger.debug("Fetching Questionnaire failed", e.getCause());
+				}
+				// Questionnaire not found
+				if (ques == null) {
+					if (loggedIn) {
+						connector.logout();
 					}
+					res.status(404);
+					errors.issues.add(
+							new Issue(IssueSeverity.FATAL, "serverbase,questionnaireid", "Questionnaire not found"));
+					res.type("application/json");
+					return errors;
+				}
+				if (molgenisIssue != null) {
+					res.status(molgenisStatus);
+					errors.issues.add(molgenisIssue);
+					res.type("application/json");
+					return errors;
 				}
 				logger.trace("Preparing conversion...");
-				QuestionnaireConverter converter = new QuestionnaireConverter(ques, fetch, connector);
-				converter.convert();
-				ConversionOutcome outcome = converter.getOutcome(request.generateTags);
+				ConversionOutcome outcome = convert(ques, fetch, request.serverbase, request.questionnaireid, connector,
+						request.generateTags);
 				logger.trace("Conversion finished.");
 				
 
@@ -387,7 +501,7 @@ public class Main implements SparkApplication {
 				//If we're here no serious errors were reported, try posting to MOLGENIS
 				if(connector != null){
 					//Post tables to MOLGENIS
-					int status = connector.postEMXByFile(outcome.getEmxTables());
+					int status = connector.postEMXByFile(outcome);
 					connector.logout();
 					if(status == 201){
 						res.status(200);
@@ -416,5 +530,305 @@ public class Main implements SparkApplication {
 			
 			
 		}, new JsonTransformer());
+
+		// Convert a Questionnaire posted as JSON while it is read
+		post(baseUrl+"/api/convert/questionnaire", (req, res) -> {
+			logger.debug("Processing API streaming convert request");
+			ConversionResponse response = new ConversionResponse();
+			res.type("application/json");
+
+			if (req.contentType() == null || !req.contentType().contains("json")) {
+				res.status(400);
+				response.issues.add(new Issue(IssueSeverity.FATAL, "content-header", "Must be application/json or application/fhir+json"));
+				return response;
+			}
+			String serverbase = req.queryParams("serverbase");
+			if (serverbase == null) {
+				res.status(400);
+				response.issues.add(new Issue(IssueSeverity.FATAL, "serverbase", "Does not contain required parameters"));
+				return response;
+			}
+			boolean withTags = Boolean.parseBoolean(req.queryParams("generateTags"));
+
+			QuestionnaireConverter converter = new QuestionnaireConverter(null,
+					new FHIRResourceFetcher(fhirContext, serverbase), null);
+			try (Reader body = new InputStreamReader(req.raw().getInputStream(), StandardCharsets.UTF_8)) {
+				converter.convert(body, new StreamingQuestionnaireReader(fhirContext));
+			} catch (IOException e) {
+				logger.debug("Reading the Questionnaire failed", e);
+				res.status(400);
+				response.issues.add(new Issue(IssueSeverity.FATAL, "body", e.getMessage()));
+				return response;
+			}
+			// The tables are written straight from the model into the zip file
+			ConversionOutcome outcome = converter.getStreamingOutcome(withTags);
+			response.issues.addAll(outcome.getIssues());
+			if (outcome.hasErrors()) {
+				res.status(422);
+				response.issues.add(0, new Issue(IssueSeverity.FATAL, "questionnaire",
+						"Not able to generate valid EMX due to parsing errors"));
+				return response;
+			}
+			response.emx = FileHandler.saveAsFile(outcome);
+			res.status(200);
+			return response;
+		}, new JsonTransformer());
+
+		// Export the QuestionnaireResponses to a Questionnaire as data rows of its main entity
+		post(baseUrl+"/api/convert/responses", (req, res) -> {
+			logger.debug("Processing API response export request");
+			DataExportResponse response = new DataExportResponse();
+			res.type("application/json");
+
+			if (req.contentType() == null || !req.contentType().contains("application/json")) {
+				res.status(400);
+				response.issues.add(new Issue(IssueSeverity.FATAL, "content-header", "Must be application/json"));
+				return response;
+			}
+			DataExportRequest request = null;
+			try {
+				request = gson.fromJson(req.body(), DataExportRequest.class);
+			} catch (Exception e) {
+				request = null;
+			}
+			if (request == null || request.serverbase == null || request.questionnaireid == null) {
+				res.status(400);
+				response.issues.add(new Issue(IssueSeverity.FATAL, "body", "Does not contain required fields"));
+				return response;
+			}
+
+			FHIRResourceFetcher fetch = new FHIRResourceFetcher(fhirContext, request.serverbase);
+			Questionnaire ques = null;
+			try {
+				ques = fetch.fetchQuestionnaire(request.questionnaireid);
+			} catch (Exception e) {
+				logger.debug("Fetching Questionnaire failed", e);
+			}
+			if (ques == null) {
+				res.status(404);
+				response.issues.add(new Issue(IssueSeverity.FATAL, "serverbase,questionnaireid", "Questionnaire not found"));
+				return response;
+			}
+
+			// The conversion is not cached, its item states are needed to map the answers
+			QuestionnaireConverter converter = new QuestionnaireConverter(ques, fetch, null);
+			converter.convert();
+			ConversionOutcome outcome = converter.getOutcome(request.generateTags);
+			response.issues.addAll(outcome.getIssues());
+			ConversionSnapshot snapshot = converter.getSnapshot();
+			if (outcome.hasErrors() || snapshot == null) {
+				res.status(422);
+				response.issues.add(0, new Issue(IssueSeverity.FATAL, "questionnaire", snapshot == null && !outcome.hasErrors()
+						? "Answers can not be mapped because the linkIds are not unique"
+						: "Not able to generate valid EMX due to parsing errors"));
+				return response;
+			}
+
+			ResponseExporter exporter = new ResponseExporter(snapshot);
+			final Questionnaire questionnaire = ques;
+			final List<String> files = request.ndjson;
+			final String questionnaireID = request.questionnaireid;
+			try {
+				response.emx = FileHandler.saveAsFile(outcome.getEmxTables(), exporter.getTableName(), out -> {
+					exporter.writeHeader(out);
+					Consumer<QuestionnaireResponse> writeRow = answers -> {
+						try {
+							exporter.writeRow(answers, out);
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+					};
+					if (files == null) {
+						fetch.forEachQuestionnaireResponse(questionnaireID,
+								Integer.getInteger("fhir2emx.export.pageSize", DEFAULT_EXPORT_PAGE_SIZE), writeRow);
+					} else {
+						for (String file : files) {
+							fetch.forEachNdjsonResource(file, resource -> {
+								if (resource instanceof QuestionnaireResponse
+										&& ResponseExporter.isResponseTo((QuestionnaireResponse) resource, questionnaire)) {
+									writeRow.accept((QuestionnaireResponse) resource);
+								}
+							});
+						}
+					}
+				});
+			} catch (Exception e) {
+				logger.debug("Exporting QuestionnaireResponses failed", e);
+				res.status(502);
+				response.issues.add(0, new Issue(IssueSeverity.FATAL, files == null ? "serverbase" : "ndjson",
+						"Reading the QuestionnaireResponses failed: " + (e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName())));
+				return response;
+			}
+			response.rows = exporter.getRows();
+			if (!exporter.getUnknownLinkIds().isEmpty()) {
+				response.issues.add(new Issue(IssueSeverity.WARNING, String.join(",", exporter.getUnknownLinkIds()),
+						"Answers to items that are not part of the Questionnaire were left out"));
+			}
+			if (!exporter.getTruncatedLinkIds().isEmpty()) {
+				response.issues.add(new Issue(IssueSeverity.WARNING, String.join(",", exporter.getTruncatedLinkIds()),
+						"Items were answered more than once but their columns hold a single value, only the first answer was exported"));
+			}
+			response.issues.add(new Issue(IssueSeverity.INFORMATION, null, response.rows + " QuestionnaireResponses were exported"));
+			res.status(200);
+			return response;
+		}, new JsonTransformer());
+
+		// Convert many Questionnaires of one server at once
+		post(baseUrl+"/api/convert/batch", (req, res) -> {
+			logger.debug("Processing API batch convert request");
+			BatchResponse response = new BatchResponse();
+			res.type("application/json");
+
+			if (req.contentType() == null || !req.contentType().contains("application/json")) {
+				res.status(400);
+				response.issues.add(new Issue(IssueSeverity.FATAL, "content-header", "Must be application/json"));
+				return response;
+			}
+			BatchRequest request = null;
+			try {
+				request = gson.fromJson(req.body(), BatchRequest.class);
+			} catch (Exception e) {
+				request = null;
+			}
+			if (request == null || request.serverbase == null
+					|| ((request.questionnaireids == null || request.questionnaireids.isEmpty()) && request.search == null)) {
+				res.status(400);
+				response.issues.add(new Issue(IssueSeverity.FATAL, "body", "Does not contain required fields"));
+				return response;
+			}
+
+			// Collect the Questionnaires to convert
+			List<String> ids = new ArrayList<String>();
+			if (request.questionnaireids != null) {
+				ids.addAll(request.questionnaireids);
+			}
+			if (request.search != null) {
+				try {
+					ids.addAll(new FHIRResourceFetcher(fhirContext, request.serverbase).searchQuestionnaireIDs(
+							request.search, Integer.getInteger("fhir2emx.batch.maxQuestionnaires", DEFAULT_BATCH_MAX_QUESTIONNAIRES)));
+				} catch (Exception e) {
+					logger.debug("Questionnaire search failed", e);
+					res.status(502);
+					response.issues.add(new Issue(IssueSeverity.FATAL, "search", "Questionnaire search failed"));
+					return response;
+				}
+			}
+			if (ids.isEmpty()) {
+				res.status(404);
+				response.issues.add(new Issue(IssueSeverity.FATAL, "search", "No Questionnaires found"));
+				return response;
+			}
+
+			BatchConverter converter = new BatchConverter(fhirContext, request.serverbase, request.generateTags, request.workers);
+			int converted = 0;
+			for (BatchConverter.Result result : converter.convert(ids)) {
+				BatchResult batchResult = new BatchResult(result.getQuestionnaireID());
+				if (!result.isFound()) {
+					batchResult.issues.add(new Issue(IssueSeverity.FATAL, "questionnaireid", "Questionnaire not found"));
+				} else {
+					batchResult.issues.addAll(result.getOutcome().getIssues());
+					batchResult.converted = result.isConverted();
+					if (result.isConverted()) {
+						converted++;
+						if (!request.combined) {
+							batchResult.emx = FileHandler.saveAsFile(result.getOutcome().getEmxTables());
+						}
+					}
+				}
+				response.results.add(batchResult);
+			}
+			if (converted == 0) {
+				res.status(422);
+				response.issues.add(new Issue(IssueSeverity.FATAL, "questionnaire", "None of the Questionnaires could be converted"));
+				return response;
+			}
+			if (request.combined) {
+				response.emx = FileHandler.saveAsFile(converter.getCombinedTables());
+			}
+			res.status(200);
+			response.issues.add(new Issue(IssueSeverity.INFORMATION, null,
+					converted + " of " + response.results.size() + " Questionnaires were converted"));
+			return response;
+		}, new JsonTransformer());
+	}
+
+	/**
+	 * Reads the tables of a written EMX file for the result page, at most fhir2emx.gui.previewRows rows per table
+	 * @param id
+	 * @param issues A note is added for each table that is not shown completely
+	 * @return the tables, empty if the file could not be read
+	 */
+	private static List<TableResult> previewTables(String id, List<Issue> issues) {
+		int previewRows = Integer.getInteger("fhir2emx.gui.previewRows", DEFAULT_PREVIEW_ROWS);
+		List<String> truncated = new ArrayList<String>();
+		try {
+			List<TableResult> tables = FileHandler.readTables(id, previewRows, truncated);
+			for (String name : truncated) {
+				issues.add(new Issue(IssueSeverity.INFORMATION, name,
+						"Only the first " + previewRows + " rows are shown, download the tables to see all of them"));
+			}
+			return tables;
+		} catch (IOException e) {
+			logger.error("Error reading generated EMX file", e);
+			return new ArrayList<TableResult>();
+		}
+	}
+
+	/**
+	 * Returns the cached outcome if the same input was converted before. Otherwise converts the Questionnaire,
+	 * incrementally if the snapshot of an earlier conversion of it is cached, and keeps the snapshot of this
+	 * conversion for the next one
+	 * @param ques
+	 * @param fetch
+	 * @param serverbase
+	 * @param questionnaireID
+	 * @param connector null if names are not checked against MOLGENIS
+	 * @param withTags
+	 * @return the outcome of the conversion, shared with later conversions of the same input
+	 */
+	private static ConversionOutcome convert(Questionnaire ques, FHIRResourceFetcher fetch, String serverbase,
+			String questionnaireID, MOLGENISServerConnector connector, boolean withTags) {
+		// Identical inputs were converted before if the dependencies did not change either. Names checked
+		// against a MOLGENIS server depend on its current state, those conversions are not cached
+		ConversionResultCache results = ConversionResultCache.getInstance();
+		DependencyPrefetcher dependencies = null;
+		String resultKey = null;
+		if (ques != null) {
+			dependencies = new DependencyPrefetcher(fetch, ques, DependencyPrefetcher.getDefaultParallelism());
+			dependencies.prefetch();
+			if (connector == null) {
+				resultKey = ConversionResultCache.key(fhirContext, ques, withTags, dependencies.getVersions());
+			}
+			ConversionOutcome cached = results.get(resultKey);
+			if (cached != null) {
+				logger.debug("Returning cached conversion of " + questionnaireID);
+				return cached;
+			}
+		}
+
+		// Reused names would have been checked against MOLGENIS at an earlier request, so only conversions
+		// without name checking continue on an earlier model
+		ConversionSnapshotCache snapshots = ConversionSnapshotCache.getInstance();
+		QuestionnaireConverter converter = new QuestionnaireConverter(ques, fetch, connector);
+		converter.setDependencies(dependencies);
+		if (connector == null) {
+			converter.convert(snapshots.take(serverbase, questionnaireID));
+		} else {
+			converter.convert();
+		}
+		// The tables are written straight from the model into the zip file. That has to happen before the
+		// snapshot is handed on, the next conversion continues on the same model
+		ConversionOutcome outcome = converter.getStreamingOutcome(withTags);
+		if (outcome.hasTables()) {
+			FileHandler.saveAsFile(outcome);
+		}
+		if (connector == null) {
+			snapshots.put(serverbase, questionnaireID, converter.getSnapshot());
+		}
+		// Only the file is kept with the cached outcome, not the tables
+		if (!outcome.hasErrors() && outcome.getArchiveFile() != null) {
+			results.put(resultKey, outcome);
+		}
+		return outcome;
 	}
 }
@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright (c) 2017 - IT Center for Clinical Research, University of Luebeck
+ * Noemi Deppenwiese, Hannes Ulrich
+ ******************************************************************************/
+package server;
+
+import org.hl7.fhir.dstu3.model.Questionnaire;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import JsonModels.CacheStatistics;
+
+/**
+ * Short lived cache of fetched Questionnaires, so the transform step of the GUI can reuse the Questionnaire
+ * fetched for the preview. Entries are keyed by server base and id and are revalidated with a conditional
+ * read before they are reused.
+ */
+public class QuestionnaireCache {
+
+	final static Logger logger = LoggerFactory.getLogger(QuestionnaireCache.class);
+
+	public final static int DEFAULT_MAX_ENTRIES = 100;
+
+	public final static int DEFAULT_TTL_SECONDS = 600;
+
+	private static QuestionnaireCache instance;
+
+	private ExpiringLRUCache<String, Questionnaire> questionnaires;
+
+	private QuestionnaireCache(int maxEntries, int ttlSeconds) {
+		this.questionnaires = new ExpiringLRUCache<String, Questionnaire>(maxEntries, ttlSeconds);
+	}
+
+	/**
+	 * (Re)creates the cache with the given limits. Cached entries are discarded.
+	 * @param maxEntries
+	 * @param ttlSeconds
+	 * @return the new cache
+	 */
+	public static synchronized QuestionnaireCache configure(int maxEntries, int ttlSeconds) {
+		logger.debug("Configuring questionnaire cache (maxEntries " + maxEntries + ", ttl " + ttlSeconds + "s)");
+		instance = new QuestionnaireCache(maxEntries, ttlSeconds);
+		return instance;
+	}
+
+	public static synchronized QuestionnaireCache getInstance() {
+		if (instance == null) {
+			instance = new QuestionnaireCache(DEFAULT_MAX_ENTRIES, DEFAULT_TTL_SECONDS);
+		}
+		return instance;
+	}
+
+	/**
+	 * @param baseURL
+	 * @param questionnaireID
+	 * @return the cached Questionnaire or null. Do not modify it, conversions must work on a copy
+	 */
+	public Questionnaire get(String baseURL, String questionnaireID) {
+		return this.questionnaires.get(key(baseURL, questionnaireID));
+	}
+
+	public void put(String baseURL, String questionnaireID, Questionnaire questionnaire) {
+		this.questionnaires.put(key(baseURL, questionnaireID), questionnaire);
+	}
+
+	public CacheStatistics getStatistics() {
+		return this.questionnaires.getStatistics();
+	}
+
+	private static String key(String baseURL, String questionnaireID) {
+		return FHIRClientRegistry.normalizeBaseURL(baseURL) + "/Questionnaire/" + questionnaireID;
+	}
+
+}
@@ -0,0 +1,18 @@
+/*******************************************************************************
+ * Copyright (c) 2017 - IT Center for Clinical Research, University of Luebeck
+ * Noemi Deppenwiese, Hannes Ulrich
+ ******************************************************************************/
+package server;
+
+/**
+ * Thrown instead of sending a request to a FHIR server whose circuit breaker is open.
+ */
+public class ServerUnavailableException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public ServerUnavailableException(String server) {
+		super("Requests to " + server + " are suspended after repeated failures");
+	}
+
+}
@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * Copyright (c) 2017 - IT Center for Clinical Research, University of Luebeck
+ * Noemi Deppenwiese, Hannes Ulrich
+ ******************************************************************************/
+package server;
+
+import org.hl7.fhir.dstu3.model.ValueSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import JsonModels.CacheStatistics;
+
+/**
+ * Process wide cache of expanded ValueSets and indexed Element Definitions, shared by all conversions.
+ * Expansions are keyed by canonical URL plus version (url|version), or by server base plus id for server
+ * internal references. Definitions are keyed by resource type and URL.
+ */
+public class TerminologyCache {
+
+	final static Logger logger = LoggerFactory.getLogger(TerminologyCache.class);
+
+	public final static int DEFAULT_MAX_ENTRIES = 1000;
+
+	public final static int DEFAULT_TTL_SECONDS = 3600;
+
+	public final static int DEFAULT_UNRESOLVABLE_TTL_SECONDS = 600;
+
+	private static TerminologyCache instance;
+
+	private ExpiringLRUCache<String, ValueSet> expansions;
+
+	private ExpiringLRUCache<String, IndexedDefinition> definitions;
+
+	/**
+	 * References that could not be resolved recently, keyed by server base and reference
+	 */
+	private ExpiringLRUCache<String, Boolean> unresolvable;
+
+	private TerminologyCache(int maxEntries, int ttlSeconds, int unresolvableTtlSeconds) {
+		this.expansions = new ExpiringLRUCache<String, ValueSet>(maxEntries, ttlSeconds);
+		this.definitions = new ExpiringLRUCache<String, IndexedDefinition>(maxEntries, ttlSeconds);
+		this.unresolvable = new ExpiringLRUCache<String, Boolean>(maxEntries, unresolvableTtlSeconds);
+	}
+
+	/**
+	 * (Re)creates the cache with the given limits. Cached entries are discarded.
+	 * @param maxEntries
+	 * @param ttlSeconds
+	 * @param unresolvableTtlSeconds How long failed references are not tried again
+	 * @return the new cache
+	 */
+	public static synchronized TerminologyCache configure(int maxEntries, int ttlSeconds, int unresolvableTtlSeconds) {
+		logger.debug("Configuring terminology cache (maxEntries " + maxEntries + ", ttl " + ttlSeconds
+				+ "s, unresolvable ttl " + unresolvableTtlSeconds + "s)");
+		instance = new TerminologyCache(maxEntries, ttlSeconds, unresolvableTtlSeconds);
+		return instance;
+	}
+
+	public static synchronized TerminologyCache getInstance() {
+		if (instance == null) {
+			instance = new TerminologyCache(DEFAULT_MAX_ENTRIES, DEFAULT_TTL_SECONDS, DEFAULT_UNRESOLVABLE_TTL_SECONDS);
+		}
+		return instance;
+	}
+
+	/**
+	 * @param key see {@link #canonicalKey(String, String)}
+	 * @return the cached expansion or null
+	 */
+	public ValueSet getExpansion(String key) {
+		if (key == null) {
+			return null;
+		}
+		return this.expansions.get(key);
+	}
+
+	/**
+	 * Stores an expansion under the given key and, if the ValueSet carries a canonical URL, under its
+	 * canonical key as well.
+	 * @param key
+	 * @param expanded
+	 */
+	public void putExpansion(String key, ValueSet expanded) {
+		if (expanded == null) {
+			return;
+		}
+		this.expansions.put(key, expanded);
+		if (expanded.hasUrl()) {
+			String canonical = canonicalKey(expanded.getUrl(), expanded.getVersion());
+			if (!canonical.equals(key)) {
+				this.expansions.put(canonical, expanded);
+			}
+		}
+	}
+
+	public CacheStatistics getStatistics() {
+		return this.expansions.getStatistics();
+	}
+
+	/**
+	 * @param key resource type and URL of a DataElement or StructureDefinition
+	 * @return the cached definition or null
+	 */
+	public IndexedDefinition getDefinition(String key) {
+		return this.definitions.get(key);
+	}
+
+	public void putDefinition(String key, IndexedDefinition definition) {
+		this.definitions.put(key, definition);
+	}
+
+	public CacheStatistics getDefinitionStatistics() {
+		return this.definitions.getStatistics();
+	}
+
+	/**
+	 * @param key server base and reference
+	 * @return true if resolving the reference failed recently
+	 */
+	public boolean isKnownUnresolvable(String key) {
+		return this.unresolvable.get(key) != null;
+	}
+
+	public void markUnresolvable(String key) {
+		this.unresolvable.put(key, Boolean.TRUE);
+	}
+
+	public CacheStatistics getUnresolvableStatistics() {
+		return this.unresolvable.getStatistics();
+	}
+
+	/**
+	 * @param url canonical URL, may already contain a |version suffix
+	 * @param version may be null
+	 * @return url|version, or url if no version is known
+	 */
+	public static String canonicalKey(String url, String version) {
+		if (url == null) {
+			return null;
+		}
+		if (version == null || version.isEmpty() || url.contains("|")) {
+			return url;
+		}
+		return url + "|" + version;
+	}
+
+}
@@ -0,0 +1,402 @@
+/*******************************************************************************
+ * Copyright (c) 2017 - IT Center for Clinical Research, University of Luebeck
+ * Noemi Deppenwiese, Hannes Ulrich
+ ******************************************************************************/
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+
+/**
+ * Persistent store for ValueSet expansions and StructureDefinition/DataElement snapshots, so the terminology
+ * cache does not start empty after a redeploy.
+ * <p>
+ * Records are appended to a single file: key, version stamp, time of storage and the gzipped JSON body. On
+ * startup only the record headers are read into an index, bodies are parsed when requested. A later record
+ * for the same key supersedes the earlier one. Once the file grows beyond its size limit it is compacted,
+ * keeping only the most recently stored live records.
+ */
+public class TerminologyStore {
+
+	final static Logger logger = LoggerFactory.getLogger(TerminologyStore.class);
+
+	public final static long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+	public final static long DEFAULT_REVALIDATE_SECONDS = 24 * 3600;
+
+	/**
+	 * "F2EX", marks store files
+	 */
+	private final static int FILE_MAGIC = 0x46324558;
+
+	/**
+	 * Increase whenever the record layout changes, stores with another format are discarded
+	 */
+	private final static int FORMAT_VERSION = 1;
+
+	private final static int FILE_HEADER_LENGTH = 8;
+
+	private static TerminologyStore instance;
+
+	private FhirContext context;
+
+	private File file;
+
+	private RandomAccessFile data;
+
+	private long maxBytes;
+
+	private long revalidateMillis;
+
+	private HashMap<String, RecordPointer> index;
+
+	private TerminologyStore(FhirContext context, File file, long maxBytes, long revalidateSeconds)
+			throws IOException {
+		this.context = context;
+		this.file = file;
+		this.maxBytes = maxBytes;
+		this.revalidateMillis = revalidateSeconds * 1000;
+		this.index = new HashMap<String, RecordPointer>();
+		this.load();
+	}
+
+	/**
+	 * Opens (or creates) the store in the given directory and makes it available via {@link #getInstance()}.
+	 * @param context FhirContext used to parse and encode stored resources
+	 * @param directory
+	 * @param maxBytes The store is compacted once its file grows beyond this
+	 * @param revalidateSeconds Entries older than this are reported as stale
+	 * @return the store or null if it could not be opened
+	 */
+	public static synchronized TerminologyStore open(FhirContext context, File directory, long maxBytes,
+			long revalidateSeconds) {
+		close();
+		try {
+			if (!directory.exists()) {
+				directory.mkdirs();
+			}
+			instance = new TerminologyStore(context, new File(directory, "terminology.store"), maxBytes,
+					revalidateSeconds);
+			logger.debug("Opened terminology store " + instance.file.getAbsolutePath() + " with "
+					+ instance.index.size() + " entries");
+		} catch (IOException e) {
+			logger.warn("Unable to open terminology store in " + directory.getAbsolutePath()
+					+ ". Expansions will not be persisted.", e);
+			instance = null;
+		}
+		return instance;
+	}
+
+	/**
+	 * @return the opened store or null if there is none
+	 */
+	public static synchronized TerminologyStore getInstance() {
+		return instance;
+	}
+
+	public static synchronized void close() {
+		if (instance != null) {
+			try {
+				instance.data.close();
+			} catch (IOException e) {
+				logger.debug("Error closing terminology store", e);
+			}
+			instance = null;
+		}
+	}
+
+	/**
+	 * @param key
+	 * @param type
+	 * @return the stored resource or null if there is none or it can't be read
+	 */
+	public synchronized <T extends IBaseResource> T read(String key, Class<T> type) {
+		RecordPointer pointer = this.index.get(key);
+		if (pointer == null) {
+			return null;
+		}
+		try {
+			byte[] body = new byte[pointer.bodyLength];
+			this.data.seek(pointer.bodyOffset);
+			this.data.readFully(body);
+			try (InputStreamReader reader = new InputStreamReader(
+					new GZIPInputStream(new ByteArrayInputStream(body)), StandardCharsets.UTF_8)) {
+				return this.context.newJsonParser().parseResource(type, reader);
+			}
+		} catch (Exception e) {
+			logger.debug("Unable to read stored entry " + key + ", dropping it", e);
+			this.index.remove(key);
+			return null;
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return true if the entry is older than the revalidation interval
+	 */
+	public synchronized boolean isStale(String key) {
+		RecordPointer pointer = this.index.get(key);
+		return pointer == null || System.currentTimeMillis() - pointer.storedAt > this.revalidateMillis;
+	}
+
+	/**
+	 * @param key
+	 * @return the version stamp the entry was stored with, or null
+	 */
+	public synchronized String getVersionStamp(String key) {
+		RecordPointer pointer = this.index.get(key);
+		if (pointer == null || pointer.versionStamp.isEmpty()) {
+			return null;
+		}
+		return pointer.versionStamp;
+	}
+
+	/**
+	 * Appends a new record for key. Resources too large to survive a compaction are not stored.
+	 * @param key
+	 * @param resource
+	 * @param versionStamp Version of the source resource (e.g. meta.versionId), may be null
+	 */
+	public synchronized void write(String key, IBaseResource resource, String versionStamp) {
+		if (key == null || resource == null) {
+			return;
+		}
+		try {
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(body), StandardCharsets.UTF_8)) {
+				this.context.newJsonParser().encodeResourceToWriter(resource, writer);
+			}
+			if (recordHeaderLength(key, "") + body.size() > this.getCompactedBytes()) {
+				logger.debug("Not storing " + key + ", its " + body.size() + " bytes exceed the size limit");
+				return;
+			}
+			this.append(key, versionStamp == null ? "" : versionStamp, System.currentTimeMillis(),
+					body.toByteArray());
+			if (this.data.length() > this.maxBytes) {
+				this.compact();
+			}
+		} catch (IOException e) {
+			logger.warn("Unable to store " + key, e);
+		}
+	}
+
+	/**
+	 * Marks an entry as revalidated by updating the time of storage of its record in place.
+	 * @param key
+	 */
+	public synchronized void touch(String key) {
+		RecordPointer pointer = this.index.get(key);
+		if (pointer == null) {
+			return;
+		}
+		try {
+			long storedAt = System.currentTimeMillis();
+			// The time of storage is followed by the body length, then the body
+			this.data.seek(pointer.bodyOffset - 4 - 8);
+			this.data.writeLong(storedAt);
+			this.index.put(key, new RecordPointer(pointer.bodyOffset, pointer.bodyLength, storedAt, pointer.versionStamp));
+		} catch (IOException e) {
+			logger.warn("Unable to refresh stored entry " + key, e);
+		}
+	}
+
+	public synchronized int size() {
+		return this.index.size();
+	}
+
+	/**
+	 * Reads all record headers into the index. Bodies are skipped.
+	 * @throws IOException
+	 */
+	private void load() throws IOException {
+		if (this.file.exists() && this.file.length() >= FILE_HEADER_LENGTH) {
+			long validLength = FILE_HEADER_LENGTH;
+			try (DataInputStream in = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(this.file), 64 * 1024))) {
+				if (in.readInt() != FILE_MAGIC || in.readInt() != FORMAT_VERSION) {
+					logger.info("Terminology store " + this.file.getAbsolutePath()
+							+ " has another format version, starting with an empty store");
+					validLength = -1;
+				} else {
+					long position = FILE_HEADER_LENGTH;
+					while (true) {
+						try {
+							String key = readString(in);
+							String versionStamp = readString(in);
+							long storedAt = in.readLong();
+							int bodyLength = in.readInt();
+							long bodyOffset = position + recordHeaderLength(key, versionStamp);
+							skipFully(in, bodyLength);
+							this.index.put(key, new RecordPointer(bodyOffset, bodyLength, storedAt, versionStamp));
+							position = bodyOffset + bodyLength;
+							validLength = position;
+						} catch (EOFException e) {
+							// End of file, or a record cut short by a crash which will be truncated
+							break;
+						}
+					}
+				}
+			}
+			if (validLength < 0) {
+				this.file.delete();
+			} else if (validLength < this.file.length()) {
+				logger.warn("Truncating incomplete record at the end of " + this.file.getAbsolutePath());
+				try (RandomAccessFile truncate = new RandomAccessFile(this.file, "rw")) {
+					truncate.setLength(validLength);
+				}
+			}
+		}
+		this.data = new RandomAccessFile(this.file, "rw");
+		if (this.data.length() < FILE_HEADER_LENGTH) {
+			this.data.setLength(0);
+			this.data.writeInt(FILE_MAGIC);
+			this.data.writeInt(FORMAT_VERSION);
+		}
+		if (this.data.length() > this.maxBytes) {
+			this.compact();
+		}
+	}
+
+	private void append(String key, String versionStamp, long storedAt, byte[] body) throws IOException {
+		long offset = this.data.length();
+		this.data.seek(offset);
+		this.data.write(encodeRecord(key, versionStamp, storedAt, body));
+		this.index.put(key, new RecordPointer(offset + recordHeaderLength(key, versionStamp), body.length,
+				storedAt, versionStamp));
+	}
+
+	/**
+	 * Rewrites the store with the most recently stored live records only, filling at most half of the size
+	 * limit so compaction does not run again on the next write. Records that do not fit anymore are dropped,
+	 * older smaller ones may still be kept.
+	 * @throws IOException
+	 */
+	private void compact() throws IOException {
+		List<Map.Entry<String, RecordPointer>> live = new ArrayList<Map.Entry<String, RecordPointer>>(
+				this.index.entrySet());
+		live.sort((a, b) -> Long.compare(b.getValue().storedAt, a.getValue().storedAt));
+
+		File compacted = new File(this.file.getParentFile(), this.file.getName() + ".compact");
+		HashMap<String, RecordPointer> newIndex = new HashMap<String, RecordPointer>();
+		try (RandomAccessFile out = new RandomAccessFile(compacted, "rw")) {
+			out.setLength(0);
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			long budget = this.getCompactedBytes();
+			for (Map.Entry<String, RecordPointer> entry : live) {
+				RecordPointer pointer = entry.getValue();
+				byte[] body = new byte[pointer.bodyLength];
+				this.data.seek(pointer.bodyOffset);
+				this.data.readFully(body);
+				byte[] record = encodeRecord(entry.getKey(), pointer.versionStamp, pointer.storedAt, body);
+				if (out.length() + record.length > budget) {
+					continue;
+				}
+				long offset = out.length();
+				out.seek(offset);
+				out.write(record);
+				newIndex.put(entry.getKey(), new RecordPointer(
+						offset + recordHeaderLength(entry.getKey(), pointer.versionStamp), body.length,
+						pointer.storedAt, pointer.versionStamp));
+			}
+		}
+		this.data.close();
+		Files.move(compacted.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		this.data = new RandomAccessFile(this.file, "rw");
+		logger.debug("Compacted terminology store from " + this.index.size() + " to " + newIndex.size() + " entries");
+		this.index = newIndex;
+	}
+
+	/**
+	 * @return size limit of the store after compaction
+	 */
+	private long getCompactedBytes() {
+		return this.maxBytes / 2;
+	}
+
+	private static byte[] encodeRecord(String key, String versionStamp, long storedAt, byte[] body)
+			throws IOException {
+		ByteArrayOutputStream record = new ByteArrayOutputStream(body.length + 128);
+		DataOutputStream out = new DataOutputStream(record);
+		writeString(out, key);
+		writeString(out, versionStamp);
+		out.writeLong(storedAt);
+		out.writeInt(body.length);
+		out.write(body);
+		out.flush();
+		return record.toByteArray();
+	}
+
+	private static long recordHeaderLength(String key, String versionStamp) {
+		return 2 + key.getBytes(StandardCharsets.UTF_8).length + 2
+				+ versionStamp.getBytes(StandardCharsets.UTF_8).length + 8 + 4;
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readUnsignedShort()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void skipFully(DataInputStream in, int length) throws IOException {
+		int remaining = length;
+		while (remaining > 0) {
+			int skipped = in.skipBytes(remaining);
+			if (skipped <= 0) {
+				throw new EOFException();
+			}
+			remaining -= skipped;
+		}
+	}
+
+	private static class RecordPointer {
+
+		private final long bodyOffset;
+
+		private final int bodyLength;
+
+		private final long storedAt;
+
+		private final String versionStamp;
+
+		RecordPointer(long bodyOffset, int bodyLength, long storedAt, String versionStamp) {
+			this.bodyOffset = bodyOffset;
+			this.bodyLength = bodyLength;
+			this.storedAt = storedAt;
+			this.versionStamp = versionStamp;
+		}
+	}
+
+}
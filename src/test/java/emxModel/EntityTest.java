@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright (c) 2017 - IT Center for Clinical Research, University of Luebeck
+ * Noemi Deppenwiese, Hannes Ulrich
+ ******************************************************************************/
+package emxModel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.naming.NameAlreadyBoundException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class EntityTest {
+
+	private EMX emx;
+
+	private Entity entity;
+
+	private Attribute code;
+
+	private Attribute display;
+
+	@Before
+	public void setUp() throws Exception {
+		this.emx = new EMX("test");
+		this.entity = this.emx.addEntity("codes");
+		this.code = this.entity.addAttribute("code");
+		this.entity.setIdAttributte(this.code, IdAttributeOpts.TRUE);
+		this.display = this.entity.addAttribute("display");
+	}
+
+	@Test
+	public void hasAttributeOfItsOwn() {
+		assertTrue(this.entity.hasAttribute(this.code));
+		assertTrue(this.entity.hasAttribute(this.display));
+		assertFalse(this.entity.hasAttribute(null));
+	}
+
+	@Test
+	public void hasNoAttributeWithSameNameButOtherInstance() throws Exception {
+		assertFalse(this.entity.hasAttribute(new Attribute(this.entity, "code")));
+		assertFalse(this.entity.hasAttribute(this.emx.addEntity("other").addAttribute("code")));
+	}
+
+	@Test
+	public void hasAttributeFollowsRemoveAndMove() throws Exception {
+		this.entity.removeAttribute(this.display);
+		assertFalse(this.entity.hasAttribute(this.display));
+
+		this.entity.moveAttribute(this.code, "renamed");
+		assertTrue(this.entity.hasAttribute(this.code));
+		assertSame(this.code, this.entity.getAttributeByName("renamed"));
+		assertNull(this.entity.getAttributeByName("code"));
+	}
+
+	@Test
+	public void instanceConstructorAppendsRow() throws Exception {
+		Instance first = this.entity.addInstance();
+		Instance second = new Instance(this.entity);
+		second.addValue(this.code, "b");
+
+		assertEquals(Arrays.asList(first, second), this.entity.getInstances());
+		assertEquals(1, second.getRow());
+		assertNull(first.getValue(this.code));
+		assertEquals("b", second.getValue(this.code));
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void instancesCannotBeAddedFromOutside() throws Exception {
+		this.entity.getInstances().add(this.entity.addInstance());
+	}
+
+	@Test(expected = AttributeNonExistentException.class)
+	public void addValueRejectsAttributeWithSameNameButOtherInstance() throws Exception {
+		this.entity.addInstance().addValue(new Attribute(this.entity, "display"), "Display");
+	}
+
+	@Test
+	public void addValueRejectsDuplicateIds() throws Exception {
+		this.entity.addInstance().addValue(this.code, "a");
+		this.entity.addInstance().addValue(this.code, "b");
+		try {
+			this.entity.addInstance().addValue(this.code, "a");
+			fail("Duplicate id was accepted");
+		} catch (NameAlreadyBoundException e) {
+			// expected
+		}
+		assertEquals(2, this.entity.getInstanceNamespace().size());
+	}
+
+	@Test
+	public void addValueAllowsDuplicatesOfOtherAttributes() throws Exception {
+		this.entity.addInstance().addValue(this.display, "same");
+		this.entity.addInstance().addValue(this.display, "same");
+		assertTrue(this.entity.getInstanceNamespace().isEmpty());
+	}
+
+	@Test
+	public void addInstancesReportsDuplicateIds() throws Exception {
+		this.entity.addInstance().addValue(this.code, "a");
+		List<String[]> rows = Arrays.asList(new String[] { "b", "B" }, new String[] { "a", "A" },
+				new String[] { "c", "C" }, new String[] { "b", "B again" });
+		List<String[]> failed = new ArrayList<String[]>();
+
+		List<Instance> added = this.entity.addInstances(new Attribute[] { this.code, this.display }, rows,
+				(row, e) -> {
+					assertTrue(e instanceof NameAlreadyBoundException);
+					failed.add(row);
+				});
+
+		assertEquals(4, added.size());
+		assertEquals(Arrays.asList(rows.get(1), rows.get(3)), failed);
+		assertEquals("B", added.get(0).getValue(this.display));
+		assertEquals("C", added.get(2).getValue(this.display));
+		// A row stops at its first invalid value
+		assertNull(added.get(1).getValue(this.display));
+		assertEquals(3, this.entity.getInstanceNamespace().size());
+	}
+
+	@Test
+	public void addInstancesRejectsAttributeWithSameNameButOtherInstance() throws Exception {
+		List<String[]> rows = new ArrayList<String[]>();
+		rows.add(new String[] { "a", "A" });
+		try {
+			this.entity.addInstances(new Attribute[] { this.code, new Attribute(this.entity, "display") }, rows,
+					(row, e) -> fail("No row should be added"));
+			fail("Attribute of no entity was accepted");
+		} catch (AttributeNonExistentException e) {
+			// expected
+		}
+		assertTrue(this.entity.getInstances().isEmpty());
+		assertTrue(this.entity.getInstanceNamespace().isEmpty());
+	}
+
+}
@@ -0,0 +1,170 @@
+/*******************************************************************************
+ * Copyright (c) 2017 - IT Center for Clinical Research, University of Luebeck
+ * Noemi Deppenwiese, Hannes Ulrich
+ ******************************************************************************/
+package emxModel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+
+import javax.naming.NameAlreadyBoundException;
+import javax.naming.directory.InvalidAttributeValueException;
+
+/**
+ * Measures how long loading code lists of growing size into an entity takes. Prints one line per size with the
+ * milliseconds for
+ * <ul>
+ * <li>baseline: {@link BaselineEntity}, the structures entities used before, with an ArrayList as id namespace and
+ * a copy of all attributes for every value</li>
+ * <li>addValue: {@link Instance#addValue(Attribute, String)} per value</li>
+ * <li>bulk: {@link Entity#addInstances(Attribute[], List, java.util.function.BiConsumer)}</li>
+ * </ul>
+ * The baseline grows quadratically, so it only runs up to a limit (50000 codes by default).<br>
+ * Not a unit test, run with java -cp [test and runtime classpath] emxModel.InstanceLoadBenchmark [sizes, comma
+ * separated] [largest size for baseline]
+ */
+public class InstanceLoadBenchmark {
+
+	private final static String DEFAULT_SIZES = "1000,5000,10000,25000,50000,100000,200000";
+
+	private final static int DEFAULT_BASELINE_LIMIT = 50000;
+
+	public static void main(String[] args) throws Exception {
+		String sizes = args.length > 0 ? args[0] : DEFAULT_SIZES;
+		int baselineLimit = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_BASELINE_LIMIT;
+		// Warm up
+		for (int i = 0; i < 3; i++) {
+			loadBaseline(2000);
+			load(10000);
+			loadBulk(10000);
+		}
+		System.out.println("codes\tbaseline ms\taddValue ms\tbulk ms");
+		for (String size : sizes.split(",")) {
+			int codes = Integer.parseInt(size.trim());
+			String baseline = codes <= baselineLimit ? Long.toString(loadBaseline(codes)) : "-";
+			System.out.println(codes + "\t" + baseline + "\t" + load(codes) + "\t" + loadBulk(codes));
+		}
+	}
+
+	private static Attribute[] codeList(Entity entity) throws Exception {
+		Attribute code = entity.addAttribute("code");
+		entity.setIdAttributte(code, IdAttributeOpts.TRUE);
+		Attribute inactive = entity.addAttribute("inactive");
+		inactive.setDataType(EMXDataType.BOOL);
+		return new Attribute[] { code, entity.addAttribute("display"), entity.addAttribute("system"),
+				entity.addAttribute("version"), inactive };
+	}
+
+	private static String[] row(int i) {
+		return new String[] { "c" + i, "Display of code " + i, "http://snomed.info/sct", "2017", "false" };
+	}
+
+	private static long loadBaseline(int codes) throws Exception {
+		Attribute[] attributes = codeList(new EMX("benchmark").addEntity("codes"));
+		BaselineEntity entity = new BaselineEntity(attributes);
+		long start = System.nanoTime();
+		for (int i = 0; i < codes; i++) {
+			String[] row = row(i);
+			int instance = entity.addInstance();
+			for (int j = 0; j < attributes.length; j++) {
+				entity.addValue(instance, attributes[j], row[j]);
+			}
+		}
+		return (System.nanoTime() - start) / 1000000;
+	}
+
+	private static long load(int codes) throws Exception {
+		Entity entity = new EMX("benchmark").addEntity("codes");
+		Attribute[] attributes = codeList(entity);
+		long start = System.nanoTime();
+		for (int i = 0; i < codes; i++) {
+			String[] row = row(i);
+			Instance instance = entity.addInstance();
+			for (int j = 0; j < attributes.length; j++) {
+				instance.addValue(attributes[j], row[j]);
+			}
+		}
+		return (System.nanoTime() - start) / 1000000;
+	}
+
+	private static long loadBulk(int codes) throws Exception {
+		Entity entity = new EMX("benchmark").addEntity("codes");
+		Attribute[] attributes = codeList(entity);
+		long start = System.nanoTime();
+		List<String[]> rows = new ArrayList<String[]>(codes);
+		for (int i = 0; i < codes; i++) {
+			rows.add(row(i));
+		}
+		entity.addInstances(attributes, rows, (row, e) -> {
+			throw new IllegalStateException(e);
+		});
+		return (System.nanoTime() - start) / 1000000;
+	}
+
+	/**
+	 * The parts of an entity that loading instances used before the hash based indexes: attributes in a map by
+	 * name, {@link #getAttributes()} copying them into a new list and an ArrayList as id namespace.
+	 * {@link #addValue(int, Attribute, String)} does the checks of the former Instance.addValue.
+	 */
+	private static class BaselineEntity {
+
+		private Map<String, Attribute> attributes;
+
+		private ArrayList<String> instanceNamespace;
+
+		private int instances;
+
+		private Map<Attribute, InstanceColumn> columns;
+
+		BaselineEntity(Attribute[] attributes) {
+			this.attributes = new ConcurrentHashMap<String, Attribute>();
+			for (Attribute attr : attributes) {
+				this.attributes.put(attr.getName(), attr);
+			}
+			this.instanceNamespace = new ArrayList<String>();
+			this.columns = new HashMap<Attribute, InstanceColumn>();
+		}
+
+		ArrayList<Attribute> getAttributes() {
+			ArrayList<Attribute> attr = new ArrayList<Attribute>();
+			attr.addAll(attributes.values());
+			return attr;
+		}
+
+		int addInstance() {
+			return this.instances++;
+		}
+
+		void addValue(int row, Attribute attr, String value) throws DataFormatException,
+				AttributeNonExistentException, InvalidAttributeValueException, NameAlreadyBoundException {
+			if (!Attribute.testDataTypeConformance(attr.getDataType(), value)) {
+				throw new DataFormatException(value + " is not of DataType " + attr.getDataType().toString());
+			}
+			if (attr.getIsIdAttribute().equals(IdAttributeOpts.AUTO)) {
+				throw new InvalidAttributeValueException("Values for AUTO idAttributes are not permitted!");
+			}
+			if (!getAttributes().contains(attr)) {
+				throw new AttributeNonExistentException("benchmark does not have attribute " + attr.getName());
+			}
+			if (attr.getIsIdAttribute().equals(IdAttributeOpts.TRUE)) {
+				if (this.instanceNamespace.contains(value)) {
+					throw new NameAlreadyBoundException(" id Attribute values must be unique but value " + value
+							+ " already exists");
+				}
+				this.instanceNamespace.add(value);
+			}
+			InstanceColumn column = this.columns.get(attr);
+			if (column == null) {
+				column = new InstanceColumn();
+				this.columns.put(attr, column);
+			}
+			column.set(row, value);
+		}
+
+	}
+
+}
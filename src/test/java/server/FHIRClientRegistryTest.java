@@ -0,0 +1,36 @@
+/*******************************************************************************
+ * Copyright (c) 2017 - IT Center for Clinical Research, University of Luebeck
+ * Noemi Deppenwiese, Hannes Ulrich
+ ******************************************************************************/
+package server;
+
+import static org.junit.Assert.assertSame;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.apache.ApacheRestfulClientFactory;
+
+public class FHIRClientRegistryTest {
+
+	private FhirContext context;
+
+	private FHIRClientRegistry registry;
+
+	@Before
+	public void setUp() {
+		this.context = FhirContext.forDstu3();
+		this.registry = FHIRClientRegistry.configure(this.context, 5, 2, 30);
+	}
+
+	@Test
+	public void hapiUsesThePooledHttpClient() {
+		this.registry.getClient("http://localhost:1/fhir");
+		this.registry.getClient("http://localhost:2/baseDstu3");
+
+		ApacheRestfulClientFactory factory = (ApacheRestfulClientFactory) this.context.getRestfulClientFactory();
+		assertSame(this.registry.getHttpClient(), factory.getNativeHttpClient());
+	}
+
+}